@@ -2,16 +2,20 @@ package com.hmdp.config;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Slf4j
@@ -22,28 +26,59 @@ public class RabbitMQConfig {
     public static final String EXCHANGE_NAME = "seckill.direct";
     public static final String ROUTING_KEY = "seckill.order";
 
+    // 一致性哈希分区：按userId路由到固定的分区队列，需要开启rabbitmq_consistent_hash_exchange插件
+    public static final String PARTITION_EXCHANGE_NAME = "seckill.hash";
+    public static final String PARTITION_QUEUE_PREFIX = "seckill.queue.";
+
     // 死信交换机和队列
     public static final String DLX_EXCHANGE_NAME = "dlx.direct";
     public static final String DLX_QUEUE_NAME = "dlx.queue";
     public static final String DLX_ROUTING_KEY = "dlx.order";
 
+    // 笔记推送到粉丝收件箱
+    public static final String FEED_QUEUE_NAME = "feed.fanout.queue";
+    public static final String FEED_EXCHANGE_NAME = "feed.direct";
+    public static final String FEED_ROUTING_KEY = "feed.fanout";
+
+    // 批量消费的监听容器工厂
+    public static final String BATCH_LISTENER_FACTORY = "batchListenerContainerFactory";
+
+    /**
+     * 每批最多拉取的消息数
+     */
+    @Value("${hmdp.seckill.consumer.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 攒批的等待时间(毫秒)，超过该时间未攒满也会提交
+     */
+    @Value("${hmdp.seckill.consumer.batch-timeout:50}")
+    private long batchTimeout;
+
+    /**
+     * 分区队列数量
+     */
+    @Value("${hmdp.seckill.partition.count:8}")
+    private int partitionCount;
+
     @Resource
     private RabbitTemplate rabbitTemplate;
 
+    /**
+     * RabbitTemplate只用于发送笔记推送任务；秒杀订单由SeckillOrderPublisher在自己的channel上发布和确认，不经过这里。
+     * 推送任务在发送前已记录到 feed:fanout:pending，被拒绝或退回的任务由 FeedFanoutWorker 的清扫重新投递，这里只记录日志
+     */
     @PostConstruct
     public void init() {
         rabbitTemplate.setConfirmCallback((correlationData, ack, cause) -> {
             if (!ack) {
-                log.error("消息发送失败，cause: {}", cause);
-                // 这里可以记录到数据库或者重试发送
+                log.error("笔记推送任务未被broker确认，等待清扫重新投递, cause: {}", cause);
             }
         });
-        
-        rabbitTemplate.setReturnCallback((message, replyCode, replyText, exchange, routingKey) -> {
-            log.error("消息丢失: exchange: {}, route: {}, replyCode: {}, replyText: {}, message: {}",
-                    exchange, routingKey, replyCode, replyText, message);
-            // 这里可以记录到数据库或者重试发送
-        });
+
+        rabbitTemplate.setReturnCallback((message, replyCode, replyText, exchange, routingKey) ->
+                log.error("笔记推送任务路由失败，等待清扫重新投递: exchange: {}, route: {}, replyCode: {}, replyText: {}",
+                        exchange, routingKey, replyCode, replyText));
     }
 
     @Bean
@@ -66,6 +101,43 @@ public class RabbitMQConfig {
         return BindingBuilder.bind(seckillQueue()).to(seckillExchange()).with(ROUTING_KEY);
     }
 
+    @Bean
+    public CustomExchange seckillPartitionExchange() {
+        return new CustomExchange(PARTITION_EXCHANGE_NAME, "x-consistent-hash", true, false);
+    }
+
+    /**
+     * 分区队列：每个队列开启单活跃消费者，同一分区同一时刻只有一个消费者，
+     * 同一用户的订单在集群内串行消费；绑定键为哈希环上的权重
+     */
+    @Bean
+    public Declarables seckillPartitionQueues() {
+        List<Declarable> declarables = new ArrayList<>(partitionCount * 2);
+        for (int i = 0; i < partitionCount; i++) {
+            Map<String, Object> arguments = new HashMap<>();
+            arguments.put("x-dead-letter-exchange", DLX_EXCHANGE_NAME);
+            arguments.put("x-dead-letter-routing-key", DLX_ROUTING_KEY);
+            arguments.put("x-single-active-consumer", true);
+            Queue queue = new Queue(PARTITION_QUEUE_PREFIX + i, true, false, false, arguments);
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(seckillPartitionExchange()).with("1").noargs());
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 订单消费者监听的队列：所有分区队列，以及旧的seckill.queue（用于消费升级前的存量消息）
+     */
+    @Bean
+    public String[] seckillQueueNames() {
+        String[] names = new String[partitionCount + 1];
+        for (int i = 0; i < partitionCount; i++) {
+            names[i] = PARTITION_QUEUE_PREFIX + i;
+        }
+        names[partitionCount] = QUEUE_NAME;
+        return names;
+    }
+
     // 死信队列配置
     @Bean
     public Queue dlxQueue() {
@@ -82,6 +154,42 @@ public class RabbitMQConfig {
         return BindingBuilder.bind(dlxQueue()).to(dlxExchange()).with(DLX_ROUTING_KEY);
     }
 
+    @Bean
+    public Queue feedQueue() {
+        return new Queue(FEED_QUEUE_NAME, true);
+    }
+
+    @Bean
+    public DirectExchange feedExchange() {
+        return new DirectExchange(FEED_EXCHANGE_NAME);
+    }
+
+    @Bean
+    public Binding feedBinding() {
+        return BindingBuilder.bind(feedQueue()).to(feedExchange()).with(FEED_ROUTING_KEY);
+    }
+
+    /**
+     * 批量消费容器：攒够batchSize条或等待batchTimeout毫秒后整批交给监听器，
+     * 采用手动确认，由监听器在事务提交后逐条ack/nack
+     */
+    @Bean(BATCH_LISTENER_FACTORY)
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(ConnectionFactory connectionFactory,
+            @Value("${spring.rabbitmq.listener.simple.concurrency:1}") int concurrency) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(messageConverter());
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setConcurrentConsumers(concurrency);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchTimeout);
+        // 预取数量不能小于批大小，否则永远攒不满一批
+        factory.setPrefetchCount(batchSize);
+        return factory;
+    }
+
     @Bean
     public MessageConverter messageConverter() {
         return new Jackson2JsonMessageConverter();
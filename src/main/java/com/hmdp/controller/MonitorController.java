@@ -0,0 +1,129 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedFanoutWorker;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.SeckillDeadLetterProcessor;
+import com.hmdp.utils.SeckillOrderOutbox;
+import com.hmdp.utils.SeckillOrderPublisher;
+import com.hmdp.utils.SeckillStockReconciler;
+import com.hmdp.utils.ShopBinlogInvalidator;
+import com.hmdp.utils.ShopCacheWarmer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 运维监控控制器
+ * 用于查看秒杀链路各组件的运行状态
+ */
+@RestController
+@RequestMapping("/monitor")
+public class MonitorController {
+
+    @Resource
+    private SeckillOrderPublisher seckillOrderPublisher;
+
+    @Resource
+    private SeckillOrderOutbox seckillOrderOutbox;
+
+    @Resource
+    private SeckillDeadLetterProcessor seckillDeadLetterProcessor;
+
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopBinlogInvalidator shopBinlogInvalidator;
+
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private FeedFanoutWorker feedFanoutWorker;
+
+    /**
+     * 订单消息发布器的在途消息数与确认延迟
+     */
+    @GetMapping("/seckill/publisher")
+    public Result publisherStats() {
+        Map<String, Object> stats = seckillOrderPublisher.stats();
+        stats.put("outboxPending", seckillOrderOutbox.pendingCount());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 死信队列积压量与恢复、补偿统计
+     */
+    @GetMapping("/seckill/dlq")
+    public Result deadLetterStats() {
+        return Result.ok(seckillDeadLetterProcessor.stats());
+    }
+
+    /**
+     * 最近一次Redis与数据库秒杀库存对账的结果
+     */
+    @GetMapping("/seckill/reconcile")
+    public Result reconcileReport() {
+        return Result.ok(seckillStockReconciler.lastReport());
+    }
+
+    /**
+     * 各本地缓存的命中率与占用
+     */
+    @GetMapping("/cache/local")
+    public Result localCacheStats() {
+        return Result.ok(cacheClient.localStats());
+    }
+
+    /**
+     * binlog缓存失效的订阅状态
+     */
+    @GetMapping("/cache/cdc")
+    public Result cdcStats() {
+        return Result.ok(shopBinlogInvalidator.stats());
+    }
+
+    /**
+     * 启动时商铺缓存预热的进度
+     */
+    @GetMapping("/cache/warmup")
+    public Result warmupStats() {
+        return Result.ok(shopCacheWarmer.stats());
+    }
+
+    /**
+     * 当前的热点key和估算访问量最高的key
+     */
+    @GetMapping("/cache/hotkeys")
+    public Result hotKeyStats() {
+        return Result.ok(hotKeyDetector.stats());
+    }
+
+    /**
+     * 本节点的笔记推送统计
+     */
+    @GetMapping("/feed/fanout")
+    public Result feedFanoutStats() {
+        return Result.ok(feedFanoutWorker.stats());
+    }
+
+    /**
+     * 某篇笔记推送到粉丝收件箱的进度
+     */
+    @GetMapping("/feed/fanout/{blogId}")
+    public Result feedFanoutProgress(@PathVariable("blogId") Long blogId) {
+        return Result.ok(feedFanoutWorker.progress(blogId));
+    }
+}
@@ -10,6 +10,7 @@ import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -44,9 +45,7 @@ public class ShopController {
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -64,6 +63,9 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param lastDistance 游标：上一页最后一个商铺的距离，与lastId一起传入时从它之后继续查询，不需要重新拉取前面的页；
+     *                     本地空间索引不可用时从Redis GEO的结果中过滤出游标之后的商铺
+     * @param lastId 游标：上一页最后一个商铺的id
      * @return 商铺列表
      */
     @GetMapping("/of/type")
@@ -71,9 +73,43 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x", required = false) Double x,
-            @RequestParam(value = "y", required = false) Double y
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "lastDistance", required = false) Double lastDistance,
+            @RequestParam(value = "lastId", required = false) Long lastId
     ) {
-        return shopService.queryShopByType(typeId, current, x, y);
+        return shopService.queryShopByType(typeId, current, x, y, lastDistance, lastId);
+    }
+
+    /**
+     * 按距离滚动查询某类型附近的商铺，第一页保存结果快照，之后的页从快照中读取
+     * @param typeId 商铺类型
+     * @param cursor 上一页返回的游标，第一页不传
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result queryShopByTypeScroll(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.queryShopByTypeScroll(typeId, x, y, cursor);
+    }
+
+    /**
+     * 查询附近多个类型的商铺，按距离合并
+     * @param typeIds 商铺类型，逗号分隔，不传时查询所有类型
+     * @param limit 返回的商铺数量
+     * @return 距离最近的商铺列表
+     */
+    @GetMapping("/nearby")
+    public Result queryNearby(
+            @RequestParam(value = "typeIds", required = false) List<Long> typeIds,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "limit", defaultValue = "" + SystemConstants.DEFAULT_PAGE_SIZE) Integer limit
+    ) {
+        return shopService.queryNearby(typeIds, x, y, limit);
     }
 
     /**
@@ -1,15 +1,14 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
-import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ShopTypeCatalog;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -23,11 +22,15 @@ import java.util.List;
 @RequestMapping("/shop-type")
 public class ShopTypeController {
     @Resource
-    private IShopTypeService typeService;
+    private ShopTypeCatalog shopTypeCatalog;
 
+    /**
+     * 直接返回预先序列化好的JSON
+     */
     @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService.queryList();
-        return Result.ok(typeList);
+    public ResponseEntity<byte[]> queryTypeList() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(shopTypeCatalog.jsonBytes());
     }
 }
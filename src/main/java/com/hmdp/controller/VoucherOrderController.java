@@ -2,13 +2,12 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillItemDTO;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -29,4 +28,16 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) throws InterruptedException {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 一次秒杀多张优惠券，每张可购买多件
+     * @param items 要购买的优惠券及数量
+     * @param allOrNothing 是否要求全部成功，为true时任意一项失败则整体不扣减
+     * @return 每一项的下单状态及订单id
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<SeckillItemDTO> items,
+                                  @RequestParam(value = "allOrNothing", defaultValue = "false") Boolean allOrNothing) {
+        return voucherOrderService.seckillVouchers(items, allOrNothing);
+    }
 }
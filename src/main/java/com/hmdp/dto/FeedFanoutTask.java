@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 笔记推送任务：把blogId推送到作者所有粉丝的收件箱
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FeedFanoutTask {
+    private Long blogId;
+    private Long authorId;
+    /**
+     * 发布时间，作为收件箱中的score
+     */
+    private Long timestamp;
+}
@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 多券秒杀中的一项，请求时填写voucherId和quantity，响应时回填status和orderId
+ */
+@Data
+public class SeckillItemDTO {
+    private Long voucherId;
+    private Integer quantity;
+    /**
+     * 0-成功，1-库存不足，2-重复下单，3-因其他项失败未执行，4-秒杀尚未开始，5-秒杀已经结束
+     */
+    private Integer status;
+    private Long orderId;
+}
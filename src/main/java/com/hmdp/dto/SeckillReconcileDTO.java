@@ -0,0 +1,39 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀库存对账结果中的一项：数据库与Redis中同一张秒杀券的订单数和库存
+ */
+@Data
+public class SeckillReconcileDTO {
+    private Long voucherId;
+    /**
+     * 数据库中的剩余库存
+     */
+    private Integer dbStock;
+    /**
+     * 数据库中的订单数
+     */
+    private Long orderCount;
+    /**
+     * Redis中的剩余库存，分桶时为各桶之和
+     */
+    private Long redisStock;
+    /**
+     * Redis下单集合中的用户数，分桶时为各桶之和
+     */
+    private Long reservedCount;
+    /**
+     * reservedCount - orderCount，大于0说明有订单没有落库
+     */
+    private Long diff;
+    /**
+     * 连续两次对账都存在差异
+     */
+    private Boolean confirmed;
+    /**
+     * 本次修复（回补）的用户数
+     */
+    private Integer repaired;
+}
@@ -90,6 +90,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 秒杀库存分桶数量，热点券可把库存拆分到多个key上，默认不分桶
+     */
+    @TableField(exist = false)
+    private Integer bucketCount;
+
     /**
      * 创建时间
      */
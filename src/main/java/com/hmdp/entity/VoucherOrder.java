@@ -42,6 +42,11 @@ public class  VoucherOrder implements Serializable {
      */
     private Long voucherId;
 
+    /**
+     * 购买数量
+     */
+    private Integer quantity;
+
     /**
      * 支付方式 1：余额支付；2：支付宝；3：微信
      */
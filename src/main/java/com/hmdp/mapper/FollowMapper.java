@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Follow;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface FollowMapper extends BaseMapper<Follow> {
 
+    /**
+     * 按用户id升序分页查询粉丝，只返回id大于afterUserId的粉丝，使用 idx_follow_user_id 覆盖索引
+     */
+    List<Long> listFollowerIdsAfter(@Param("followUserId") Long followUserId,
+                                    @Param("afterUserId") Long afterUserId,
+                                    @Param("limit") int limit);
 }
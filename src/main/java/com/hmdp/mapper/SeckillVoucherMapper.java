@@ -3,6 +3,8 @@ package com.hmdp.mapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 
+import java.time.LocalDateTime;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 Mapper 接口
@@ -13,4 +15,8 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 数据库的当前时间，作为按 update_time 增量刷新的起点，避免应用服务器与数据库的时钟偏差
+     */
+    LocalDateTime selectNow();
 }
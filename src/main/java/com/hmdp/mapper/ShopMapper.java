@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +17,28 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    /**
+     * 流式读取所有id，用于重建布隆过滤器
+     */
+    Cursor<Long> streamIds();
+
+    /**
+     * 最大的id，从Redis加载布隆过滤器后作为增量同步的起点
+     */
+    Long selectMaxId();
+
+    /**
+     * 按id升序查询大于afterId的id，用于把绕过应用新增的数据同步到布隆过滤器
+     */
+    List<Long> listIdsAfter(@Param("afterId") long afterId, @Param("limit") int limit);
+
+    /**
+     * 流式读取所有商铺，用于启动时预热缓存
+     */
+    Cursor<Shop> streamAll();
+
+    /**
+     * 流式读取所有商铺的id、类型和坐标，用于构建本地空间索引
+     */
+    Cursor<Shop> streamLocations();
 }
@@ -2,6 +2,12 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.dto.SeckillReconcileDTO;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +19,13 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行INSERT批量保存订单，未设置的字段使用表默认值
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 一次GROUP BY流式统计结束时间晚于since的秒杀券的订单数与数据库库存，逐行读取，不会一次加载全部结果
+     */
+    Cursor<SeckillReconcileDTO> streamOrderCounts(@Param("since") LocalDateTime since);
 }
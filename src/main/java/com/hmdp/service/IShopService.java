@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  * 服务类
@@ -16,7 +18,13 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id) throws InterruptedException;
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
-    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double lastDistance, Long lastId);
+
+    Result queryShopByTypeScroll(Integer typeId, Double x, Double y, String cursor);
+
+    Result queryNearby(List<Long> typeIds, Double x, Double y, Integer limit);
 }
@@ -3,10 +3,14 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -27,4 +31,12 @@ public interface IUserService extends IService<User> {
     Result signCount();
 
     Result logout(HttpServletRequest request);
+
+    /**
+     * 批量查询用户的公开信息，优先读缓存
+     * @return id -> 用户，不存在的用户不在结果中
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
+
+    List<UserDTO> queryUserDTOsInOrder(List<Long> ids);
 }
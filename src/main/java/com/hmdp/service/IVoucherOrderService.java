@@ -1,9 +1,12 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillItemDTO;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  * 服务类
@@ -16,5 +19,15 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId) throws InterruptedException;
 
-    void createVoucherOrder(VoucherOrder voucherId);
+    Result seckillVouchers(List<SeckillItemDTO> items, boolean allOrNothing);
+
+    /**
+     * @return 订单已落库（或已经存在）返回true，数据库库存不足没有落库返回false
+     */
+    boolean createVoucherOrder(VoucherOrder voucherId);
+
+    /**
+     * @return 因数据库库存不足没有落库的订单
+     */
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
 }
@@ -1,34 +1,37 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.FeedFanoutTask;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedFanoutWorker;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.IdHydrator;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.GetMapping;
 
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.MAX_PAGE_SIZE;
 
 /**
@@ -39,6 +42,7 @@ import static com.hmdp.utils.SystemConstants.MAX_PAGE_SIZE;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -49,10 +53,23 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private IFollowService followService;
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdHydrator idHydrator;
+
+    @Resource
+    private FeedFanoutWorker feedFanoutWorker;
 
     @Override
     public Result queryBlogById(Long id) {
+        // 布隆过滤器判断id不存在，直接返回
+        if (!idBloomFilters.mightContain(IdBloomFilters.BLOG, id)) {
+            return Result.fail("笔记不存在");
+        }
         // 查询blog
         Blog blog = getById(id);
         if (blog == null) {
@@ -63,7 +80,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         isBlogLiked(id, blog);
 
         // 查询用户
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
 
         // 返回
         return Result.ok(blog);
@@ -82,7 +99,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         records.forEach(blog -> isBlogLiked(blog.getId(), blog));
 
         // 查询用户
-        records.forEach(this::queryBlogUser);
+        queryBlogUsers(records);
 
         // 返回
         return Result.ok(records);
@@ -103,16 +120,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (score != null) {
             // 3.1 如果点赞过，取消点赞
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            // 3.2 把用户从Redis的sortedset集合移除
+            // 3.2 把用户从Redis的sortedset集合移除，删除笔记缓存
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId);
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         } else {
             //4.1 数据库点赞数+1
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            //4.2 保存用户到Redis的sortedset集合，score为当前时间戳
+            //4.2 保存用户到Redis的sortedset集合，score为当前时间戳，删除笔记缓存
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId, currentTime);
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }
 
@@ -130,20 +149,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
         // 2.解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
 
-        // 3.根据用户id查询用户 WHERE id IN ( 5 , 1 ) ORDER BY FIELD(id, 5, 1)
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 3.根据用户id批量查询用户，结果按ids的顺序
+        List<UserDTO> userDTOS = userService.queryUserDTOsInOrder(ids);
 
         // 4.返回
         return Result.ok(userDTOS);
     }
 
     @Override
+    @Transactional(rollbackFor = Exception.class)
     public Result saveBlog(Blog blog) {
         // 1.获取登录用户
         UserDTO user = UserHolder.getUser();
@@ -155,21 +170,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.fail("新增笔记失败!");
         }
 
-        // 3. 查询笔记作者的所有粉丝，从tb_follow中查询  select * from tb_follow where follow_user_id = ?
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-
-        // 4. 把探店博文的id保存到每个粉丝的关注列表中
-        // 4.1 遍历所有粉丝
-        for (Follow follow : follows) {
-            // 4.2 获取粉丝id
-            Long followUserId = follow.getUserId();
-            // 4.3 构建Redis的key
-            String key = FEED_KEY + followUserId;
-            // 4.4 把探店博文的id保存到粉丝的关注列表中
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
-        }
+        // 3. 异步推送到所有粉丝的收件箱，由FeedFanoutWorker分页批量写入，不阻塞发布请求；
+        // 任务先记录到Redis，投递失败时由清扫重新投递，记录失败时回滚笔记
+        feedFanoutWorker.submit(new FeedFanoutTask(blog.getId(), user.getId(), System.currentTimeMillis()));
+        idBloomFilters.add(IdBloomFilters.BLOG, blog.getId());
 
-        // 5. 返回id
+        // 4. 返回id
         return Result.ok(blog.getId());
     }
 
@@ -205,13 +211,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .collect(Collectors.toList());
 
         // 4. 根据id查询blog
-        // 4.1 构建blog的id列表
-        String idStr = StrUtil.join(",", ids);
-        // 4.2 根据id查询blog
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        // 4.3 封装blog的作者信息
+        // 4.1 先读缓存，未命中的用 IN 查询数据库，按收件箱的顺序返回
+        List<Blog> blogs = idHydrator.hydrate(CACHE_BLOG_KEY, ids, Blog.class, Blog::getId,
+                this::listByIds, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        // 4.2 封装blog的作者信息
+        queryBlogUsers(blogs);
         for (Blog blog : blogs) {
-            queryBlogUser(blog);
             isBlogLiked(blog.getId(), blog);
         }
 
@@ -237,11 +242,22 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setIsLike(score != null);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 批量查询笔记作者，一次读取缓存
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -100,10 +99,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         List<Long> commonFollowUserIds = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
 
         // 4. 查询用户信息
-        List<UserDTO> commonFollowUserDTOs =  iUserService.listByIds(commonFollowUserIds)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        List<UserDTO> commonFollowUserDTOs = iUserService.queryUserDTOsInOrder(commonFollowUserIds);
 
         return Result.ok(commonFollowUserDTOs);
     }
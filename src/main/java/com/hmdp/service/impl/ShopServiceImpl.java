@@ -1,30 +1,44 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopScrollResult;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.IdHydrator;
+import com.hmdp.utils.ShopGeoGrid;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGeoSession;
+import com.hmdp.utils.ShopTypeCatalog;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.*;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.data.redis.domain.geo.GeoShape;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.SHOP_NEARBY_MAX_LIMIT;
+import static com.hmdp.utils.SystemConstants.SHOP_NEARBY_RADIUS;
 
 /**
  * <p>
@@ -46,10 +60,39 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopGeoSession shopGeoSession;
+
+    @Resource
+    private IdHydrator idHydrator;
+
+    @Resource
+    private ShopTypeCatalog shopTypeCatalog;
+
+    /**
+     * 商铺本地缓存的最大字节数
+     */
+    @Value("${hmdp.cache.local.shop-max-bytes:16777216}")
+    private long shopLocalMaxBytes;
+
+    @PostConstruct
+    public void init() {
+        // 热点商铺在本地缓存，命中时不再访问Redis
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY, shopLocalMaxBytes, CACHE_SHOP_LOCAL_TTL, TimeUnit.SECONDS);
+    }
 
     @Override
     public Result queryById(Long id) throws InterruptedException {
+        // 布隆过滤器判断id不存在，直接返回，不访问Redis和数据库
+        if (!idBloomFilters.mightContain(IdBloomFilters.SHOP, id)) {
+            return Result.fail("商铺不存在");
+        }
         // 解决缓存穿透问题
         Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
@@ -67,6 +110,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1.写入数据库
+        save(shop);
+        // 2.加入布隆过滤器和本地空间索引
+        idBloomFilters.add(IdBloomFilters.SHOP, shop.getId());
+        if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+            shopGeoIndex.upsert(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+        }
+        // 3.返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional(rollbackFor = Exception.class)
     public Result update(Shop shop) {
@@ -78,14 +134,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 2. 更新数据库
         updateById(shop);
 
-        // 3. 删除redis缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        // 3. 删除redis缓存，并通知所有节点删除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+
+        // 4. 坐标或类型可能变化，按数据库中的最新值更新本地空间索引
+        Shop latest = getById(shop.getId());
+        if (latest != null) {
+            shopGeoIndex.upsert(latest.getId(), latest.getTypeId(), latest.getX(), latest.getY());
+        }
 
         return Result.ok();
     }
 
     @Override
-    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double lastDistance, Long lastId) {
         // 1.判断是否需要根据坐标查询
         if (x == null || y == null) {
             // 不需要坐标查询，按数据库查询
@@ -96,46 +158,211 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.ok(page.getRecords());
         }
 
-        // 2.计算分页参数
+        // 2.带游标时，从游标之后查询一页
+        if (lastDistance != null && lastId != null) {
+            if (shopGeoIndex.isReady()) {
+                List<ShopGeoGrid.Hit> hits = shopGeoIndex.nearby(typeId.longValue(), x, y, SHOP_NEARBY_RADIUS,
+                        lastDistance, lastId, SystemConstants.DEFAULT_PAGE_SIZE);
+                return Result.ok(loadShops(hits));
+            }
+            // 本地空间索引不可用，从Redis GEO的结果中过滤出游标之后的商铺
+            List<ShopGeoGrid.Hit> hits = searchNearbyAfter(typeId.longValue(), x, y, lastDistance, lastId,
+                    SystemConstants.DEFAULT_PAGE_SIZE);
+            if (hits == null) {
+                return Result.fail("附近商铺过多，请稍后重试");
+            }
+            return Result.ok(loadShops(hits));
+        }
+
+        // 3.计算分页参数
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
 
-        // 3.查询redis、按照距离排序、分页。结果：shopId、distance
-        String key = SHOP_GEO_KEY + typeId;
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo() // GEOSEARCH key BYLONLAT x y BYRADIUS 10 WITHDISTANCE
-                .search(
-                        key,
-                        GeoReference.fromCoordinate(x, y),
-                        new Distance(5000),
-                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end)
-                );
-        // 4.解析出id
-        if (results == null) {
-            return Result.ok(Collections.emptyList());
-        }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-        if (list.size() <= from) {
+        // 4.查询附近的商铺，按照距离排序。结果：shopId、distance
+        List<ShopGeoGrid.Hit> hits = searchNearby(typeId.longValue(), x, y, end);
+        // 5.判断是否有这一页
+        if (hits.size() <= from) {
             // 没有下一页了，结束
             return Result.ok(Collections.emptyList());
         }
-        // 4.1.截取 from ~ end的部分
-        List<Long> ids = new ArrayList<>(list.size());
-        Map<String, Distance> distanceMap = new HashMap<>(list.size());
-        list.stream().skip(from).forEach(result -> {
-            // 4.2.获取店铺id
-            String shopIdStr = result.getContent().getName();
-            ids.add(Long.valueOf(shopIdStr));
-            // 4.3.获取距离
-            Distance distance = result.getDistance();
-            distanceMap.put(shopIdStr, distance);
+        // 6.根据id批量查询Shop，并设置距离
+        return Result.ok(loadShops(hits.subList(from, hits.size())));
+    }
+
+    @Override
+    public Result queryShopByTypeScroll(Integer typeId, Double x, Double y, String cursor) {
+        int pageSize = SystemConstants.DEFAULT_PAGE_SIZE;
+        String token;
+        int offset;
+        List<ShopGeoGrid.Hit> hits;
+        if (StrUtil.isBlank(cursor)) {
+            // 1.第一页：查询附近的商铺，保存快照
+            if (x == null || y == null) {
+                return Result.fail("缺少坐标");
+            }
+            List<ShopGeoGrid.Hit> all = searchNearby(typeId.longValue(), x, y, shopGeoSession.maxSize());
+            if (all.isEmpty()) {
+                return Result.ok(scrollResult(Collections.emptyList(), null));
+            }
+            token = shopGeoSession.create(all);
+            offset = 0;
+            hits = all.subList(0, Math.min(pageSize, all.size()));
+        } else {
+            // 2.之后的页：解析游标，从快照中读取这一页
+            ShopGeoSession.Position position = shopGeoSession.parseCursor(cursor);
+            if (position == null) {
+                return Result.fail("无效的游标");
+            }
+            token = position.getToken();
+            offset = position.getOffset();
+            hits = shopGeoSession.slice(token, offset, pageSize);
+            if (hits == null) {
+                return Result.fail("查询已过期，请重新查询");
+            }
+        }
+        // 3.查询商铺，生成下一页的游标；最后一页不足pageSize条
+        int next = offset + hits.size();
+        String nextCursor = hits.size() < pageSize || next >= shopGeoSession.maxSize() ? null : shopGeoSession.cursor(token, next);
+        return Result.ok(scrollResult(loadShops(hits), nextCursor));
+    }
+
+    private static ShopScrollResult scrollResult(List<Shop> shops, String cursor) {
+        ShopScrollResult result = new ShopScrollResult();
+        result.setList(shops);
+        result.setCursor(cursor);
+        return result;
+    }
+
+    /**
+     * 根据id批量查询商铺，按hits的顺序返回并设置距离
+     */
+    private List<Shop> loadShops(List<ShopGeoGrid.Hit> hits) {
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (ShopGeoGrid.Hit hit : hits) {
+            ids.add(hit.getId());
+        }
+        // 一次MGET，未命中的一次查询数据库，结果按hits的顺序，不存在的商铺被跳过
+        List<Shop> cachedShops = idHydrator.hydrate(CACHE_SHOP_KEY, ids, Shop.class, Shop::getId,
+                this::listByIds, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cachedShops.size());
+        int h = 0;
+        for (Shop cached : cachedShops) {
+            while (hits.get(h).getId() != cached.getId()) {
+                h++;
+            }
+            // 缓存中的对象可能被共享，复制后再设置距离
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
+            shop.setDistance(hits.get(h).getDistance());
+            shops.add(shop);
+        }
+        return shops;
+    }
+
+    @Override
+    public Result queryNearby(List<Long> typeIds, Double x, Double y, Integer limit) {
+        // 1.没有指定类型时查询所有类型
+        if (typeIds == null || typeIds.isEmpty()) {
+            typeIds = shopTypeCatalog.types().stream().map(ShopType::getId).collect(Collectors.toList());
+        }
+        int count = Math.min(Math.max(1, limit), SHOP_NEARBY_MAX_LIMIT);
+        // 2.各类型分别查询，按距离合并出最近的count个
+        List<ShopGeoGrid.Hit> hits = searchNearby(typeIds, x, y, count);
+        // 3.根据id批量查询Shop，并设置距离
+        return Result.ok(loadShops(hits));
+    }
+
+    private List<ShopGeoGrid.Hit> searchNearby(Long typeId, double x, double y, int limit) {
+        return searchNearby(Collections.singletonList(typeId), x, y, limit);
+    }
+
+    /**
+     * 使用Redis GEO查询游标(lastDistance, lastId)之后最近的pageSize个商铺
+     * GEOSEARCH不支持从某个距离之后开始，只能按COUNT取最近的若干个再过滤，COUNT不够时加倍重查，
+     * 最多取快照上限个；超过上限仍凑不满一页且还有更多结果时返回null，不能用别的页代替
+     */
+    private List<ShopGeoGrid.Hit> searchNearbyAfter(long typeId, double x, double y,
+                                                   double lastDistance, long lastId, int pageSize) {
+        // Redis返回的距离保留4位小数，游标可能来自本地空间索引的完整精度，按同样的精度比较
+        double cursorDistance = roundDistance(lastDistance);
+        int max = Math.max(pageSize, shopGeoSession.maxSize());
+        int limit = Math.min(pageSize * 2, max);
+        while (true) {
+            List<ShopGeoGrid.Hit> hits = searchNearbyFromRedis(Collections.singletonList(typeId), x, y, limit);
+            // 1.按(距离, id)排序，过滤出游标之后的商铺
+            List<ShopGeoGrid.Hit> after = new ArrayList<>();
+            for (ShopGeoGrid.Hit hit : hits) {
+                double distance = roundDistance(hit.getDistance());
+                if (distance > cursorDistance || (distance == cursorDistance && hit.getId() > lastId)) {
+                    after.add(hit);
+                }
+            }
+            after.sort(Comparator.comparingDouble(ShopGeoGrid.Hit::getDistance).thenComparingLong(ShopGeoGrid.Hit::getId));
+            // 2.凑满一页，或者Redis中已经没有更多结果
+            if (after.size() >= pageSize || hits.size() < limit) {
+                return after.size() <= pageSize ? after : after.subList(0, pageSize);
+            }
+            // 3.达到上限仍凑不满一页
+            if (limit >= max) {
+                return null;
+            }
+            limit = Math.min(limit * 2, max);
+        }
+    }
+
+    private static double roundDistance(double distance) {
+        return Math.round(distance * 10000) / 10000.0;
+    }
+
+    /**
+     * 查询这些类型中距离最近的limit个商铺，优先使用本地空间索引，没有准备好时使用Redis GEO
+     */
+    private List<ShopGeoGrid.Hit> searchNearby(Collection<Long> typeIds, double x, double y, int limit) {
+        List<List<ShopGeoGrid.Hit>> sorted = new ArrayList<>();
+        if (shopGeoIndex.isReady()) {
+            for (Long typeId : typeIds) {
+                sorted.add(shopGeoIndex.nearby(typeId, x, y, SHOP_NEARBY_RADIUS, null, 0, limit));
+            }
+            return ShopGeoGrid.merge(sorted, limit);
+        }
+        return searchNearbyFromRedis(typeIds, x, y, limit);
+    }
+
+    /**
+     * 使用Redis GEO查询这些类型中距离最近的limit个商铺
+     */
+    private List<ShopGeoGrid.Hit> searchNearbyFromRedis(Collection<Long> typeIds, double x, double y, int limit) {
+        List<List<ShopGeoGrid.Hit>> sorted = new ArrayList<>();
+        // 1.每个类型、与搜索范围相交的每个分片各一个key
+        List<String> keys = new ArrayList<>();
+        for (Long typeId : typeIds) {
+            keys.addAll(shopGeoKeys(typeId, x, y, SHOP_NEARBY_RADIUS));
+        }
+        // 2.通过管道同时发出所有GEOSEARCH，每个key取最近的limit个
+        // GEOSEARCH key FROMLONLAT x y BYRADIUS 5000 m ASC COUNT limit WITHDIST
+        RedisGeoCommands.GeoSearchCommandArgs args = RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs()
+                .includeDistance().sortAscending().limit(limit);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String key : keys) {
+                stringConnection.geoSearch(key, GeoReference.fromCoordinate(x, y),
+                        GeoShape.byRadius(new Distance(SHOP_NEARBY_RADIUS)), args);
+            }
+            return null;
         });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
-        }
-        // 6.返回
-        return Result.ok(shops);
+        // 3.各key的结果已按距离排序，k路归并
+        for (Object result : results) {
+            if (!(result instanceof GeoResults)) {
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content =
+                    ((GeoResults<RedisGeoCommands.GeoLocation<String>>) result).getContent();
+            List<ShopGeoGrid.Hit> hits = new ArrayList<>(content.size());
+            for (GeoResult<RedisGeoCommands.GeoLocation<String>> geoResult : content) {
+                hits.add(new ShopGeoGrid.Hit(Long.parseLong(geoResult.getContent().getName()), geoResult.getDistance().getValue()));
+            }
+            sorted.add(hits);
+        }
+        return ShopGeoGrid.merge(sorted, limit);
     }
 }
@@ -13,6 +13,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdHydrator;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -27,10 +29,10 @@ import javax.servlet.http.HttpSession;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -50,6 +52,11 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdHydrator idHydrator;
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -204,4 +211,22 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok();
     }
 
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        return cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public List<UserDTO> queryUserDTOsInOrder(List<Long> ids) {
+        return idHydrator.hydrate(CACHE_USER_KEY, ids, UserDTO.class, UserDTO::getId,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
 }
@@ -3,28 +3,45 @@ package com.hmdp.service.impl;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.config.RabbitMQConfig;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillItemDTO;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBucketRouter;
+import com.hmdp.utils.SeckillOrderLanes;
+import com.hmdp.utils.SeckillOrderOutbox;
+import com.hmdp.utils.SeckillOrderPublisher;
+import com.hmdp.utils.SeckillScheduleCache;
+import com.hmdp.utils.SeckillStockGate;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import com.rabbitmq.client.Channel;
+import io.lettuce.core.cluster.SlotHash;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.util.Collections;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
-import org.springframework.amqp.rabbit.connection.CorrelationData;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -48,11 +65,27 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+
+    @Resource
+    private MessageConverter messageConverter;
+
+    @Resource
+    private SeckillStockGate seckillStockGate;
+
+    @Resource
+    private SeckillBucketRouter seckillBucketRouter;
+
+    @Resource
+    private SeckillOrderOutbox seckillOrderOutbox;
+
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillOrderPublisher seckillOrderPublisher;
 
     @Resource
-    private RabbitTemplate rabbitTemplate;
+    private SeckillOrderLanes seckillOrderLanes;
+
+    @Resource
+    private SeckillScheduleCache seckillScheduleCache;
 
     @Resource
     @Lazy
@@ -60,77 +93,359 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
+    private static final DefaultRedisScript<List> SECKILL_MULTI_SCRIPT;
+
+    private static final DefaultRedisScript<Long> SECKILL_BUCKET_SCRIPT;
+
+    private static final DefaultRedisScript<Long> SECKILL_BUCKET_STEAL_SCRIPT;
+
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+
+        SECKILL_MULTI_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_MULTI_SCRIPT.setLocation(new ClassPathResource("seckill_multi.lua"));
+        SECKILL_MULTI_SCRIPT.setResultType(List.class);
+
+        SECKILL_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BUCKET_SCRIPT.setLocation(new ClassPathResource("seckill_bucket.lua"));
+        SECKILL_BUCKET_SCRIPT.setResultType(Long.class);
+
+        SECKILL_BUCKET_STEAL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BUCKET_STEAL_SCRIPT.setLocation(new ClassPathResource("seckill_bucket_steal.lua"));
+        SECKILL_BUCKET_STEAL_SCRIPT.setResultType(Long.class);
     }
 
     @Override
     public Result seckillVoucher(Long voucherId) throws InterruptedException {
+        // 0.本地校验秒杀时间窗口
+        SeckillScheduleCache.Window window = seckillScheduleCache.window(voucherId);
+        int windowStatus = window.status(System.currentTimeMillis());
+        if (windowStatus != SeckillScheduleCache.OPEN) {
+            return Result.fail(seckillFailMessage(windowStatus));
+        }
+        // 0.1.本地库存闸门，已售罄的券直接拒绝，不再访问Redis
+        if (seckillStockGate.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         // 获取用户
         Long userId = UserHolder.getUser().getId();
         long orderId = redisIdWorker.nextId("order");
         // 1.执行lua脚本,判断是否有购买资格
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId));
-        int r = result.intValue();
+        int bucketCount = seckillBucketRouter.bucketCount(voucherId);
+        int r;
+        if (bucketCount > 1) {
+            // 1.1.热点券库存分桶，在多个桶之间扣减
+            r = seckillFromBuckets(voucherId, userId, bucketCount, window);
+        } else {
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Arrays.asList(seckillStockKey(voucherId), seckillOrderKey(voucherId)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), SECKILL_STOCK_CHANNEL,
+                    String.valueOf(window.getBeginMillis()), String.valueOf(window.getEndMillis()));
+            r = result.intValue();
+        }
         // 2.判断结果是否为0
         if (r != 0) {
             // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            if (r == 1) {
+                // 库存不足，本地标记售罄，后续请求不再访问Redis
+                seckillStockGate.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
+        seckillStockGate.onSuccess(voucherId);
 
         // 3.发送消息到RabbitMQ
         VoucherOrder voucherOrder = new VoucherOrder();
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
-        
-        // 创建CorrelationData
-        CorrelationData correlationData = new CorrelationData(orderId + "");
-        rabbitTemplate.convertAndSend(RabbitMQConfig.EXCHANGE_NAME, RabbitMQConfig.ROUTING_KEY, voucherOrder, correlationData);
+        voucherOrder.setQuantity(1);
+        sendVoucherOrder(voucherOrder);
 
         // 4.返回订单id
         return Result.ok(orderId);
     }
 
-    @RabbitListener(queues = RabbitMQConfig.QUEUE_NAME)
+    /**
+     * 分桶秒杀：先在用户的主桶上校验一人一单并扣减，主桶为空时依次到兄弟桶扣减，
+     * 所有桶都为空时释放用户在主桶上的占位
+     * @return 0-成功，1-库存不足，2-重复下单，4-秒杀尚未开始，5-秒杀已经结束
+     */
+    private int seckillFromBuckets(Long voucherId, Long userId, int bucketCount, SeckillScheduleCache.Window window) {
+        int homeBucket = seckillBucketRouter.homeBucket(userId, bucketCount);
+        String orderKey = seckillOrderKey(voucherId, homeBucket);
+        Long result = stringRedisTemplate.execute(
+                SECKILL_BUCKET_SCRIPT,
+                Arrays.asList(seckillStockKey(voucherId, homeBucket), orderKey),
+                userId.toString(), String.valueOf(window.getBeginMillis()), String.valueOf(window.getEndMillis()));
+        int r = result.intValue();
+        if (r != 3) {
+            return r;
+        }
+        // 主桶库存耗尽，到兄弟桶扣减
+        for (int i = 1; i < bucketCount; i++) {
+            int bucket = (homeBucket + i) % bucketCount;
+            Long stolen = stringRedisTemplate.execute(
+                    SECKILL_BUCKET_STEAL_SCRIPT,
+                    Collections.singletonList(seckillStockKey(voucherId, bucket)));
+            if (stolen.intValue() == 0) {
+                return 0;
+            }
+        }
+        // 所有桶都没有库存，释放占位并通知所有节点售罄
+        stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        seckillStockGate.publish(voucherId, 0);
+        return 1;
+    }
+
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case SeckillScheduleCache.NOT_STARTED:
+                return "秒杀尚未开始！";
+            default:
+                return "秒杀已经结束！";
+        }
+    }
+
+    @Override
+    public Result seckillVouchers(List<SeckillItemDTO> items, boolean allOrNothing) {
+        if (items == null || items.isEmpty() || items.size() > SystemConstants.MAX_SECKILL_ITEMS) {
+            return Result.fail("优惠券数量不合法");
+        }
+        // 1.合并同一张券的多项，校验购买数量
+        Map<Long, SeckillItemDTO> itemMap = new LinkedHashMap<>(items.size());
+        for (SeckillItemDTO item : items) {
+            int quantity = item.getQuantity() == null ? 1 : item.getQuantity();
+            if (item.getVoucherId() == null || quantity <= 0) {
+                return Result.fail("购买数量不合法");
+            }
+            SeckillItemDTO merged = itemMap.computeIfAbsent(item.getVoucherId(), voucherId -> {
+                SeckillItemDTO dto = new SeckillItemDTO();
+                dto.setVoucherId(voucherId);
+                dto.setQuantity(0);
+                return dto;
+            });
+            merged.setQuantity(merged.getQuantity() + quantity);
+        }
+
+        // 2.不在秒杀时间内的券、本地已售罄的券直接判定失败，不再访问Redis
+        List<SeckillItemDTO> pendingItems = new ArrayList<>(itemMap.size());
+        long now = System.currentTimeMillis();
+        for (SeckillItemDTO item : itemMap.values()) {
+            int windowStatus = seckillScheduleCache.window(item.getVoucherId()).status(now);
+            if (windowStatus != SeckillScheduleCache.OPEN) {
+                item.setStatus(windowStatus);
+            } else if (seckillStockGate.isSoldOut(item.getVoucherId())) {
+                item.setStatus(1);
+            } else {
+                pendingItems.add(item);
+            }
+        }
+        if (allOrNothing && pendingItems.size() < itemMap.size()) {
+            pendingItems.forEach(item -> item.setStatus(3));
+            return Result.ok(new ArrayList<>(itemMap.values()));
+        }
+
+        // 3.按slot分组执行脚本，单机Redis只有一组，整个购物车只需一次往返
+        Long userId = UserHolder.getUser().getId();
+        List<List<SeckillItemDTO>> groups = groupBySlot(userId, pendingItems);
+        if (allOrNothing && groups.size() > 1) {
+            // 跨slot无法保证原子性
+            return Result.fail("全部成功模式要求所有优惠券位于同一个slot");
+        }
+        for (List<SeckillItemDTO> group : groups) {
+            executeMultiScript(userId, group, allOrNothing);
+        }
+
+        // 4.为成功的项创建订单并发送到RabbitMQ
+        for (SeckillItemDTO item : pendingItems) {
+            // 分桶的券只代表主桶库存不足，不能标记售罄
+            if (item.getStatus() == 1 && item.getQuantity() == 1
+                    && seckillBucketRouter.bucketCount(item.getVoucherId()) == 1) {
+                seckillStockGate.markSoldOut(item.getVoucherId());
+            }
+            if (item.getStatus() != 0) {
+                continue;
+            }
+            long orderId = redisIdWorker.nextId("order");
+            item.setOrderId(orderId);
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderId);
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(item.getVoucherId());
+            voucherOrder.setQuantity(item.getQuantity());
+            sendVoucherOrder(voucherOrder);
+            seckillStockGate.onSuccess(item.getVoucherId());
+        }
+        return Result.ok(new ArrayList<>(itemMap.values()));
+    }
+
+    /**
+     * 执行多券秒杀脚本，把每一项的状态回填到item中；分桶的券只在用户的主桶上扣减
+     */
+    private void executeMultiScript(Long userId, List<SeckillItemDTO> items, boolean allOrNothing) {
+        List<String> keys = new ArrayList<>(items.size() * 2);
+        List<String> args = new ArrayList<>(3 + items.size() * 5);
+        args.add(userId.toString());
+        args.add(allOrNothing ? "1" : "0");
+        args.add(SECKILL_STOCK_CHANNEL);
+        for (SeckillItemDTO item : items) {
+            keys.add(seckillBucketRouter.stockKey(item.getVoucherId(), userId));
+            keys.add(seckillBucketRouter.orderKey(item.getVoucherId(), userId));
+            args.add(item.getVoucherId().toString());
+            args.add(item.getQuantity().toString());
+            args.add(seckillBucketRouter.bucketCount(item.getVoucherId()) == 1 ? "1" : "0");
+            SeckillScheduleCache.Window window = seckillScheduleCache.window(item.getVoucherId());
+            args.add(String.valueOf(window.getBeginMillis()));
+            args.add(String.valueOf(window.getEndMillis()));
+        }
+        List<Long> statuses = stringRedisTemplate.execute(SECKILL_MULTI_SCRIPT, keys, args.toArray());
+        for (int i = 0; i < items.size(); i++) {
+            items.get(i).setStatus(statuses.get(i).intValue());
+        }
+    }
+
+    /**
+     * 按key所在的slot分组，Redis Cluster中一个脚本只能操作同一个slot的key；非集群模式下只有一组
+     */
+    private List<List<SeckillItemDTO>> groupBySlot(Long userId, List<SeckillItemDTO> items) {
+        RedisConnectionFactory connectionFactory = stringRedisTemplate.getConnectionFactory();
+        boolean cluster = connectionFactory instanceof LettuceConnectionFactory
+                && ((LettuceConnectionFactory) connectionFactory).isClusterAware();
+        if (!cluster || items.size() <= 1) {
+            return items.isEmpty() ? Collections.emptyList() : Collections.singletonList(items);
+        }
+        Map<Integer, List<SeckillItemDTO>> slotMap = items.stream()
+                .collect(Collectors.groupingBy(item -> SlotHash.getSlot(seckillBucketRouter.stockKey(item.getVoucherId(), userId)),
+                        LinkedHashMap::new, Collectors.toList()));
+        return new ArrayList<>(slotMap.values());
+    }
+
+    private void sendVoucherOrder(VoucherOrder voucherOrder) {
+        // 先写入本地outbox，由后台线程可靠投递；outbox未开启或空间已满时直接发送
+        if (seckillOrderOutbox.append(voucherOrder)) {
+            return;
+        }
+        seckillOrderPublisher.publish(voucherOrder).thenAccept(success -> {
+            if (!success) {
+                log.error("消息发送失败, orderId: {}", voucherOrder.getId());
+            }
+        });
+    }
+
+    @RabbitListener(queues = "#{seckillQueueNames}",
+            autoStartup = "#{!${hmdp.seckill.consumer.batch-enabled:false}}")
     public void listenSeckillQueue(VoucherOrder voucherOrder) {
         log.info("接收到秒杀订单消息: {}", voucherOrder);
-        handleVoucherOrder(voucherOrder);
+        // 交给用户所在的单写者通道串行处理，等待完成后再确认消息
+        seckillOrderLanes.execute(voucherOrder.getUserId(), () -> handleVoucherOrder(voucherOrder));
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 1.获取用户
-        Long userId = voucherOrder.getUserId();
-        // 2.创建锁对象
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        // 3.尝试获取锁
-        boolean isLock = redisLock.tryLock();
-        // 4.判断是否获得锁成功
-        if (!isLock) {
-            // 获取锁失败，直接返回失败或者重试
-            log.error("不允许重复下单！");
+    /**
+     * 批量消费模式：一批消息按用户拆分到各个单写者通道，每个通道的子批在同一个事务中落库，
+     * 事务提交后再逐条ack；子批失败时降级为逐条处理，只把真正失败的消息nack到死信队列
+     */
+    @RabbitListener(queues = "#{seckillQueueNames}",
+            containerFactory = RabbitMQConfig.BATCH_LISTENER_FACTORY,
+            autoStartup = "${hmdp.seckill.consumer.batch-enabled:false}")
+    public void listenSeckillQueueBatch(List<Message> messages, Channel channel) throws IOException {
+        log.info("接收到秒杀订单批量消息: {} 条", messages.size());
+        // 1.解析消息，无法解析的消息直接拒绝，进入死信队列；按用户所在通道分组
+        Map<Integer, List<Message>> laneMessages = new HashMap<>();
+        Map<Integer, List<VoucherOrder>> laneOrders = new HashMap<>();
+        for (Message message : messages) {
+            long deliveryTag = message.getMessageProperties().getDeliveryTag();
+            try {
+                message.getMessageProperties().setInferredArgumentType(VoucherOrder.class);
+                VoucherOrder voucherOrder = (VoucherOrder) messageConverter.fromMessage(message);
+                int lane = seckillOrderLanes.laneOf(voucherOrder.getUserId());
+                laneMessages.computeIfAbsent(lane, k -> new ArrayList<>()).add(message);
+                laneOrders.computeIfAbsent(lane, k -> new ArrayList<>()).add(voucherOrder);
+            } catch (Exception e) {
+                log.error("秒杀订单消息解析失败: {}", message, e);
+                channel.basicNack(deliveryTag, false, false);
+            }
+        }
+        if (laneOrders.isEmpty()) {
             return;
         }
+
+        // 2.各通道并行落库，每个子批一个事务；返回因库存不足没有落库的订单，异常时返回null
+        Map<Integer, Future<List<VoucherOrder>>> results = new HashMap<>();
+        laneOrders.forEach((lane, orders) -> results.put(lane, seckillOrderLanes.submit(lane, () -> {
+            try {
+                return voucherOrderServiceProxy.createVoucherOrderBatch(orders);
+            } catch (Exception e) {
+                log.error("批量处理订单异常，降级为逐条处理", e);
+                return null;
+            }
+        })));
+
+        // 3.在监听线程上统一确认；没有落库的订单nack到死信队列补偿，失败的子批逐条处理以定位失败的消息
+        for (Map.Entry<Integer, Future<List<VoucherOrder>>> entry : results.entrySet()) {
+            int lane = entry.getKey();
+            List<Message> accepted = laneMessages.get(lane);
+            List<VoucherOrder> voucherOrders = laneOrders.get(lane);
+            List<VoucherOrder> rejected = SeckillOrderLanes.await(entry.getValue());
+            if (rejected != null) {
+                Set<VoucherOrder> rejectedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+                rejectedSet.addAll(rejected);
+                for (int i = 0; i < accepted.size(); i++) {
+                    long deliveryTag = accepted.get(i).getMessageProperties().getDeliveryTag();
+                    if (rejectedSet.contains(voucherOrders.get(i))) {
+                        channel.basicNack(deliveryTag, false, false);
+                    } else {
+                        channel.basicAck(deliveryTag, false);
+                    }
+                }
+                continue;
+            }
+            for (int i = 0; i < accepted.size(); i++) {
+                long deliveryTag = accepted.get(i).getMessageProperties().getDeliveryTag();
+                VoucherOrder voucherOrder = voucherOrders.get(i);
+                try {
+                    seckillOrderLanes.execute(voucherOrder.getUserId(), () -> handleVoucherOrder(voucherOrder));
+                    channel.basicAck(deliveryTag, false);
+                } catch (Exception e) {
+                    channel.basicNack(deliveryTag, false, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在单写者通道线程中执行，同一用户的订单不会并发落库，无需再加分布式锁
+     */
+    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        boolean persisted;
         try {
             // 通过代理对象调用，确保事务生效
-            voucherOrderServiceProxy.createVoucherOrder(voucherOrder);
+            persisted = voucherOrderServiceProxy.createVoucherOrder(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            // 唯一索引冲突，事务已回滚库存扣减；订单已经存在（死信重试等不经过通道的路径先落库了），视为成功
+            log.info("订单已经存在, orderId: {}", voucherOrder.getId());
+            persisted = true;
         } catch (Exception e) {
             log.error("处理订单异常", e);
             // 抛出异常，触发重试
             throw new RuntimeException("处理订单异常", e);
-        } finally {
-            // 释放锁
-            redisLock.unlock();
+        }
+        if (!persisted) {
+            // 数据库库存不足，订单没有落库，交给死信队列回补Redis库存
+            throw new AmqpRejectAndDontRequeueException("库存不足，订单未落库, orderId: " + voucherOrder.getId());
         }
     }
 
+    @Override
     @Transactional(rollbackFor = Exception.class)
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
 
         Long userId = voucherOrder.getUserId();
         // 5.判断用户是否重复下单
@@ -139,22 +454,123 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             log.error("用户已经购买过了");
             // 这里可能不需要抛出异常回滚，因为是消费者，只要不重试即可。
             // 但如果抛出异常，RabbitMQ可能会重试。
-            // 既然已经加了锁，这里再次检查是为了防止数据库层面的并发（虽然锁应该挡住了）。
-            return; 
+            // 同一用户的订单在单写者通道中串行处理，这里再次检查是为了防止消息重复投递；
+            // 死信重试不经过通道，并发插入时由 (voucher_id, user_id) 唯一索引拦截，抛出DuplicateKeyException并回滚库存扣减。
+            return true;
         }
 
         // 6.扣减库存,乐观锁
+        int quantity = quantityOf(voucherOrder);
         boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1")
+                .setSql("stock = stock - " + quantity)
                 .eq("voucher_id", voucherOrder.getVoucherId())
-                .gt("stock", 0)
+                .ge("stock", quantity)
                 .update();
         if (!success) {
-            log.error("库存不足");
-            return;
+            log.error("库存不足, orderId: {}", voucherOrder.getId());
+            return false;
         }
 
         // 7保存订单
         save(voucherOrder);
+        return true;
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1.批内去重，同一用户同一张券只保留一单（消息重投时会出现重复）
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+
+        // 2.一次查询过滤掉数据库中已经存在的订单
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : orderMap.values()) {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        List<VoucherOrder> existOrders = query()
+                .select("user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        for (VoucherOrder existOrder : existOrders) {
+            if (orderMap.remove(existOrder.getUserId() + ":" + existOrder.getVoucherId()) != null) {
+                log.error("用户已经购买过了, userId: {}, voucherId: {}", existOrder.getUserId(), existOrder.getVoucherId());
+            }
+        }
+        if (orderMap.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // 3.按优惠券聚合，每张券只执行一次 stock = stock - k
+        Map<Long, List<VoucherOrder>> voucherOrderMap = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> saveOrders = new ArrayList<>(orderMap.size());
+        List<VoucherOrder> rejectedOrders = new ArrayList<>();
+        voucherOrderMap.forEach((voucherId, orders) -> {
+            int granted = deductStock(voucherId, orders);
+            if (granted < orders.size()) {
+                log.error("库存不足, voucherId: {}, 订单数: {}, 成功扣减库存的订单数: {}", voucherId, orders.size(), granted);
+                rejectedOrders.addAll(orders.subList(granted, orders.size()));
+            }
+            saveOrders.addAll(orders.subList(0, granted));
+        });
+
+        // 4.多行INSERT保存订单；与其他路径并发插入同一订单时唯一索引冲突，整批回滚，由调用方逐条处理
+        if (!saveOrders.isEmpty()) {
+            getBaseMapper().insertBatch(saveOrders);
+        }
+        return rejectedOrders;
+    }
+
+    /**
+     * 为同一张券的一组订单扣减库存，库存不够时按顺序扣减到库存用完为止
+     * @return 成功扣减库存的订单数（前n个订单）
+     */
+    private int deductStock(Long voucherId, List<VoucherOrder> orders) {
+        int total = orders.stream().mapToInt(VoucherOrderServiceImpl::quantityOf).sum();
+        // 1.乐观扣减整批库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + total)
+                .eq("voucher_id", voucherId)
+                .ge("stock", total)
+                .update();
+        if (success) {
+            return orders.size();
+        }
+        // 2.库存不够整批扣减，加锁读取最新库存，按剩余库存扣减
+        SeckillVoucher seckillVoucher = seckillVoucherService.query()
+                .eq("voucher_id", voucherId)
+                .last("FOR UPDATE")
+                .one();
+        int stock = seckillVoucher == null ? 0 : seckillVoucher.getStock();
+        int granted = 0;
+        int deducted = 0;
+        for (VoucherOrder order : orders) {
+            int quantity = quantityOf(order);
+            if (deducted + quantity > stock) {
+                break;
+            }
+            deducted += quantity;
+            granted++;
+        }
+        if (deducted > 0) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock - " + deducted)
+                    .eq("voucher_id", voucherId)
+                    .update();
+        }
+        return granted;
+    }
+
+    /**
+     * 购买数量，兼容没有数量字段的旧消息
+     */
+    private static int quantityOf(VoucherOrder voucherOrder) {
+        return voucherOrder.getQuantity() == null ? 1 : voucherOrder.getQuantity();
     }
 }
@@ -7,15 +7,15 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillBucketRouter;
+import com.hmdp.utils.SeckillScheduleCache;
+import com.hmdp.utils.SeckillStockGate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -31,7 +31,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockGate seckillStockGate;
+
+    @Resource
+    private SeckillBucketRouter seckillBucketRouter;
+
+    @Resource
+    private SeckillScheduleCache seckillScheduleCache;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -53,7 +59,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀库存到Redis中，热点券按分桶数量拆分到多个key
+        int bucketCount = voucher.getBucketCount() == null ? 1 : voucher.getBucketCount();
+        seckillBucketRouter.initBuckets(voucher.getId(), voucher.getStock(), bucketCount);
+        // 通知所有节点刷新本地库存闸门
+        seckillStockGate.publish(voucher.getId(), voucher.getStock());
+        // 本节点立即生效秒杀时间窗口，其他节点通过增量刷新获取；重新读取以拿到数据库生成的 update_time
+        seckillScheduleCache.put(seckillVoucherService.getById(voucher.getId()));
     }
 }
@@ -1,58 +1,295 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 
+/**
+ * 缓存工具
+ * Redis为二级缓存；通过 {@link #enableLocalCache} 为某个key前缀开启Caffeine一级缓存后，
+ * 命中时直接返回本地对象，不再访问Redis和反序列化。本地缓存中的对象被多个请求共享，调用方不能修改。
+ * 通过 {@link #delete} 删除缓存时会在 {@link RedisConstants#CACHE_INVALIDATE_CHANNEL} 上广播，所有节点同时失效本地缓存。
+ * 缓存值由 {@link CacheCodecs} 编码为字节写入Redis，空字符串表示缓存的空值。
+ * 每次读取Redis前交给 {@link HotKeyDetector} 计数，被判定为热点的key在本地保存 hmdp.cache.hotkey.local-ttl 毫秒，
+ * 热点期间同一个key每个节点每个周期只读一次Redis。
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private final RedisMessageListenerContainer listenerContainer;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final CacheCodecs cacheCodecs;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    /**
+     * 缓存重建线程池，队列有界，积压过多时拒绝新的重建任务
+     */
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
+            10, 10, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(200),
+            r -> {
+                Thread thread = new Thread(r, "cache-rebuild");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * 概率提前刷新的系数，越大越早刷新
+     */
+    @Value("${hmdp.cache.xfetch-beta:1.0}")
+    private double xfetchBeta;
+
+    /**
+     * 等待其他节点重建缓存的最长时间(毫秒)，与互斥锁的过期时间一致
+     */
+    private static final long MUTEX_WAIT_MILLIS = 10_000;
+
+    /**
+     * 正在重建的key -> 重建结果，同一个key的并发未命中共享同一个结果
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀 -> 本地缓存
+     */
+    private final Map<String, LocalCache> localCaches = new ConcurrentHashMap<>();
+
+    /**
+     * 热点key在本地保存的时长(毫秒)
+     */
+    @Value("${hmdp.cache.hotkey.local-ttl:1000}")
+    private long hotLocalTtl;
+
+    @Value("${hmdp.cache.hotkey.local-max-size:10000}")
+    private long hotLocalMaxSize;
+
+    /**
+     * 热点key -> Redis中的原始字节
+     */
+    private Cache<String, byte[]> hotValues;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                       CacheCodecs cacheCodecs, HotKeyDetector hotKeyDetector) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.cacheCodecs = cacheCodecs;
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        hotValues = Caffeine.newBuilder()
+                .maximumSize(hotLocalMaxSize)
+                .expireAfterWrite(hotLocalTtl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 为key前缀开启本地缓存
+     * @param maximumBytes 本地缓存占用的最大字节数（按编码后的长度估算），超过后按W-TinyLFU淘汰
+     * @param ttl 写入后的过期时间，兜底广播丢失时的不一致
+     */
+    public void enableLocalCache(String keyPrefix, long maximumBytes, long ttl, TimeUnit unit) {
+        Cache<String, LocalValue> cache = Caffeine.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((String key, LocalValue value) -> key.length() * 2 + value.weight)
+                .expireAfterWrite(ttl, unit)
+                .recordStats()
+                .build();
+        localCaches.put(keyPrefix, new LocalCache(cache));
+    }
+
+    /**
+     * 删除缓存，并通知所有节点失效本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除缓存：一次DEL，失效消息通过管道一次发送
+     */
+    public void deleteAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(this::invalidateLocal);
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void invalidateLocal(String key) {
+        hotValues.invalidate(key);
+        for (Map.Entry<String, LocalCache> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                LocalCache localCache = entry.getValue();
+                localCache.epoch.incrementAndGet();
+                localCache.cache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * 各本地缓存的命中率与占用
+     */
+    public Map<String, Object> localStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        localCaches.forEach((prefix, localCache) -> {
+            CacheStats cacheStats = localCache.cache.stats();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("size", localCache.cache.estimatedSize());
+            item.put("weight", localCache.cache.policy().eviction()
+                    .map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L));
+            item.put("hitRate", cacheStats.hitRate());
+            item.put("hitCount", cacheStats.hitCount());
+            item.put("missCount", cacheStats.missCount());
+            item.put("evictionCount", cacheStats.evictionCount());
+            stats.put(prefix, item);
+        });
+        return stats;
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, cacheCodecs.encode(value), time, unit);
+    }
+
+    /**
+     * 通过管道批量写入缓存，只写入不存在的key（SET NX），不会覆盖其他线程写入的更新的数据；
+     * 每个key的过期时间在 time 的基础上随机增加至多10%，避免同时过期
+     */
+    public void setBatchIfAbsent(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long millis = unit.toMillis(time);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            values.forEach((key, value) -> connection.set(key.getBytes(StandardCharsets.UTF_8),
+                    cacheCodecs.encode(value),
+                    Expiration.milliseconds(millis + random.nextLong(millis / 10 + 1)),
+                    RedisStringCommands.SetOption.ifAbsent()));
+            return null;
+        });
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * @param delta 重建这条缓存耗费的时间(毫秒)，用于概率提前刷新
+     */
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta) {
         // 设置逻辑过期
         RedisData redisData = new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setDelta(delta);
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, cacheCodecs.encode(redisData), null, null);
+    }
+
+    /**
+     * 读取缓存的原始字节，不存在时返回null，缓存的空值返回长度为0的数组
+     */
+    private byte[] getBytes(String key) {
+        // 热点key优先读本地
+        boolean hot = hotKeyDetector.record(key);
+        if (hot) {
+            byte[] bytes = hotValues.getIfPresent(key);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (hot && bytes != null) {
+            hotValues.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param time 为null时不过期
+     */
+    private void setBytes(String key, byte[] value, Long time, TimeUnit unit) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+        hotValues.invalidate(key);
     }
 
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0.先查本地缓存
+        LocalCache localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            LocalValue localValue = localCache.cache.getIfPresent(key);
+            if (localValue != null) {
+                return type.cast(localValue.value);
+            }
+        }
+        // 记录失效版本，读Redis期间发生失效时不回填本地缓存
+        long epoch = localCache == null ? 0 : localCache.epoch.get();
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，直接返回；无法解码时已删除，按未命中处理
+            R r = decodeOrEvict(key, bytes, type);
+            if (r != null) {
+                putLocal(localCache, epoch, key, r, bytes.length);
+                return r;
+            }
+            bytes = null;
         }
         // 判断命中的是否是空值
-        if (json != null) {
+        if (bytes != null) {
+            putLocal(localCache, epoch, key, null, 0);
             // 返回一个错误信息
             return null;
         }
@@ -63,113 +300,364 @@ public class CacheClient {
         if (r == null) {
             // 将空值写入redis
             stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(localCache, epoch, key, null, 0);
             // 返回错误信息
             return null;
         }
         // 6.存在，写入redis
-        this.set(key, r, time, unit);
+        byte[] value = cacheCodecs.encode(r);
+        setBytes(key, value, time, unit);
+        putLocal(localCache, epoch, key, r, value.length);
         return r;
     }
 
+    /**
+     * 批量查询，缓存穿透按id分别处理
+     * 本地缓存未命中的key用一次MGET查询Redis，Redis未命中的id交给dbFallback一次性查询数据库，
+     * 查到的值和不存在的id（写入空值）通过管道一次写回Redis。
+     * @param dbFallback 根据一批id查询数据库，返回 id -> 数据，不存在的id不放入结果
+     * @return id -> 数据，按ids的顺序，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                        Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                        Long time, TimeUnit unit) {
+        Map<ID, R> result = new LinkedHashMap<>(ids.size() * 4 / 3 + 1);
+        if (ids.isEmpty()) {
+            return result;
+        }
+        // 0.先查本地缓存，去掉重复的id
+        LocalCache localCache = localCaches.get(keyPrefix);
+        long epoch = localCache == null ? 0 : localCache.epoch.get();
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = keyPrefix + id;
+            LocalValue localValue = localCache == null ? null : localCache.cache.getIfPresent(key);
+            byte[] hotBytes = localValue == null && hotKeyDetector.record(key) ? hotValues.getIfPresent(key) : null;
+            R hotValue = hotBytes == null || hotBytes.length == 0 ? null : decodeOrEvict(key, hotBytes, type);
+            if (hotValue != null) {
+                // 热点key命中本地
+                result.put(id, hotValue);
+            } else if (hotBytes != null && hotBytes.length == 0) {
+                // 热点key命中本地空值
+                continue;
+            } else if (localValue == null) {
+                remoteIds.add(id);
+                // 占位，保持返回结果的顺序
+                result.put(id, null);
+            } else if (localValue.value != null) {
+                result.put(id, type.cast(localValue.value));
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+
+        // 1.一次MGET查询Redis
+        byte[][] rawKeys = new byte[remoteIds.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = (keyPrefix + remoteIds.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+
+        // 2.解析命中的值，记录未命中的id
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes == null) {
+                missIds.add(id);
+                continue;
+            }
+            if (hotKeyDetector.isHot(keyPrefix + id)) {
+                hotValues.put(keyPrefix + id, bytes);
+            }
+            if (bytes.length == 0) {
+                // 命中空值
+                result.remove(id);
+                putLocal(localCache, epoch, keyPrefix + id, null, 0);
+                continue;
+            }
+            R r = decodeOrEvict(keyPrefix + id, bytes, type);
+            if (r == null) {
+                // 无法解码，已删除，从数据库重新加载
+                missIds.add(id);
+                continue;
+            }
+            result.put(id, r);
+            putLocal(localCache, epoch, keyPrefix + id, r, bytes.length);
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+
+        // 3.未命中的id一次查询数据库
+        Map<ID, R> loaded = dbFallback.apply(missIds);
+        byte[][] encoded = new byte[missIds.size()][];
+        for (int i = 0; i < missIds.size(); i++) {
+            ID id = missIds.get(i);
+            R r = loaded == null ? null : loaded.get(id);
+            if (r == null) {
+                result.remove(id);
+                encoded[i] = new byte[0];
+                putLocal(localCache, epoch, keyPrefix + id, null, 0);
+            } else {
+                result.put(id, r);
+                encoded[i] = cacheCodecs.encode(r);
+                putLocal(localCache, epoch, keyPrefix + id, r, encoded[i].length);
+            }
+        }
+
+        // 4.通过管道写回Redis，不存在的id写入空值
+        Expiration expiration = Expiration.from(time, unit);
+        Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < missIds.size(); i++) {
+                byte[] rawKey = (keyPrefix + missIds.get(i)).getBytes(StandardCharsets.UTF_8);
+                connection.set(rawKey, encoded[i], encoded[i].length == 0 ? nullExpiration : expiration,
+                        RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        return result;
+    }
+
+    private void putLocal(LocalCache localCache, long epoch, String key, Object value, int weight) {
+        if (localCache == null) {
+            return;
+        }
+        // 读取期间有失效消息，放弃回填，避免把旧值写回本地缓存
+        if (localCache.epoch.get() != epoch) {
+            return;
+        }
+        localCache.cache.put(key, value == null ? LocalValue.NULL : new LocalValue(value, weight));
+    }
+
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 3.不存在，直接返回
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        // 4.命中，需要先反序列化为对象；无法解码时（实体结构变化等）同步重建，逻辑过期的缓存不会自己消失
+        RedisData redisData = decodeLogicalOrNull(key, bytes, type);
+        if (redisData == null) {
+            return rebuildUndecodable(key, id, dbFallback, time, unit);
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1.未过期，直接返回店铺信息
+        // 5.判断是否需要刷新：已过期，或者按概率提前刷新
+        if (!shouldRefresh(expireTime, redisData.getDelta())) {
+            // 5.1.不需要刷新，直接返回店铺信息
             return r;
         }
-        // 5.2.已过期，需要缓存重建
         // 6.缓存重建
         // 6.1.获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
         boolean isLock = tryLock(lockKey);
         // 6.2.判断是否获取锁成功
         if (isLock) {
-                // 再次判断缓存是否过期
-                if (expireTime.isAfter(LocalDateTime.now())) {
-                    // 未过期，直接返回店铺信息
-                    return r;
-                }
+            // 再次判断缓存是否已经被其他请求刷新
+            byte[] latest = getBytes(key);
+            RedisData latestData = latest == null || latest.length == 0 ? null : decodeLogicalOrNull(key, latest, type);
+            LocalDateTime latestExpireTime = latestData == null ? null : latestData.getExpireTime();
+            if (latestExpireTime != null && latestExpireTime.isAfter(expireTime)) {
+                unlock(lockKey);
+                return r;
+            }
 
-                // 6.3.成功，开启独立线程，实现缓存重建
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
+            // 6.3.成功，交给有界线程池重建缓存；线程池已满时放弃本次刷新，由后续请求重试
+            try {
+                CACHE_REBUILD_EXECUTOR.execute(() -> {
                     try {
-                        // 查询数据库
+                        // 查询数据库，记录重建耗时
+                        long begin = System.currentTimeMillis();
                         R newR = dbFallback.apply(id);
+                        long delta = System.currentTimeMillis() - begin;
                         // 重建缓存
-                        this.setWithLogicalExpire(key, newR, time, unit);
+                        this.setWithLogicalExpire(key, newR, time, unit, delta);
                     } catch (Exception e) {
-                        throw new RuntimeException(e);
+                        log.error("缓存重建失败, key: {}", key, e);
                     } finally {
                         // 释放锁
                         unlock(lockKey);
                     }
                 });
+            } catch (RejectedExecutionException e) {
+                log.debug("缓存重建任务过多，放弃本次刷新, key: {}", key);
+                unlock(lockKey);
+            }
         }
-        // 6.4.返回过期的商铺信息
+        // 6.4.返回旧的商铺信息
         return r;
     }
 
+    /**
+     * XFetch概率提前过期：now - delta * beta * ln(rand) >= expireTime 时刷新。
+     * 越接近过期时间、重建耗时delta越大，提前刷新的概率越高，热点key的重建被分散到过期前的一段时间内
+     */
+    private boolean shouldRefresh(LocalDateTime expireTime, Long delta) {
+        long expireMillis = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long now = System.currentTimeMillis();
+        if (now >= expireMillis) {
+            return true;
+        }
+        if (delta == null || delta <= 0) {
+            return false;
+        }
+        // 1 - nextDouble() 的取值范围是 (0, 1]，ln为非正数
+        double gap = -delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return now + gap >= expireMillis;
+    }
+
     public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，直接返回；无法解码时已删除，按未命中处理
+            R r = decodeOrEvict(key, bytes, type);
+            if (r != null) {
+                return r;
+            }
+            bytes = null;
         }
         // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (bytes != null) {
             // 返回一个错误信息
             return null;
         }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.合并本节点内同一个key的并发未命中，只有第一个请求（leader）去重建缓存，其余请求等待它的结果
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return type.cast(await(leader));
+        }
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
+            R r = rebuildWithMutex(key, id, type, dbFallback, time, unit);
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
 
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
+    /**
+     * leader获取分布式互斥锁后查询数据库重建缓存；锁被其他节点持有时等待对方重建完成，超时后直接查询数据库
+     */
+    private <R, ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = LOCK_SHOP_KEY + id;
+        long deadline = System.currentTimeMillis() + MUTEX_WAIT_MILLIS;
+        long interval = 10;
+        while (true) {
+            // 4.1.获取互斥锁
+            if (tryLock(lockKey)) {
+                try {
+                    // 4.2.获取锁成功，再次检查缓存，其他节点可能刚刚重建完成
+                    byte[] bytes = getBytes(key);
+                    if (bytes != null && bytes.length == 0) {
+                        return null;
+                    }
+                    R r = bytes == null ? null : decodeOrEvict(key, bytes, type);
+                    return r != null ? r : loadAndCache(key, id, dbFallback, time, unit);
+                } finally {
+                    // 7.释放锁
+                    unlock(lockKey);
+                }
+            }
+            // 4.3.锁被其他节点持有，等待对方重建完成
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("等待缓存重建超时，直接查询数据库, key: {}", key);
+                return dbFallback.apply(id);
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            interval = Math.min(interval * 2, 100);
+            byte[] bytes = getBytes(key);
+            if (bytes != null && bytes.length == 0) {
                 return null;
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7.释放锁
-            unlock(lockKey);
+            R r = bytes == null ? null : decodeOrEvict(key, bytes, type);
+            if (r != null) {
+                return r;
+            }
+        }
+    }
+
+    /**
+     * 解码缓存值；实体增删字段、编码格式变化等原因无法解码时删除这个key，返回null，调用方按未命中处理并重建
+     */
+    private <R> R decodeOrEvict(String key, byte[] bytes, Class<R> type) {
+        try {
+            return cacheCodecs.decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存无法解码，删除后重建, key: {}", key, e);
+            evict(key);
+            return null;
+        }
+    }
+
+    private <R> RedisData decodeLogicalOrNull(String key, byte[] bytes, Class<R> type) {
+        try {
+            return cacheCodecs.decodeLogical(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("逻辑过期缓存无法解码, key: {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 逻辑过期的缓存无法解码时，查询数据库同步重建；数据已不存在时删除这个key
+     */
+    private <R, ID> R rebuildUndecodable(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            evict(key);
+            return null;
         }
-        // 8.返回
+        setWithLogicalExpire(key, r, time, unit, System.currentTimeMillis() - begin);
         return r;
     }
 
+    private void evict(String key) {
+        stringRedisTemplate.delete(key);
+        hotValues.invalidate(key);
+    }
+
+    private <R, ID> R loadAndCache(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 5.根据id查询数据库
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            // 不存在，将空值写入redis
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        // 6.存在，写入redis
+        this.set(key, r, time, unit);
+        return r;
+    }
+
+    private static Object await(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -178,4 +666,31 @@ public class CacheClient {
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
-}
\ No newline at end of file
+
+    private static class LocalCache {
+        private final Cache<String, LocalValue> cache;
+        /**
+         * 失效次数，用来判断读取Redis期间是否发生过失效
+         */
+        private final AtomicLong epoch = new AtomicLong();
+
+        private LocalCache(Cache<String, LocalValue> cache) {
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * 本地缓存的值，value为null表示缓存的空值
+     */
+    private static class LocalValue {
+        private static final LocalValue NULL = new LocalValue(null, 0);
+
+        private final Object value;
+        private final int weight;
+
+        private LocalValue(Object value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存编码器
+ * 实现类注册为Spring Bean后即可在 {@code hmdp.cache.codec} 中按名称选用；
+ * 每个编码器有唯一的id，写入缓存值的首字节，读取时据此选择解码器，切换编码器后旧数据仍能读取。
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码器id，取值 1~31；0保留给没有头部的JSON文本
+     */
+    byte id();
+
+    /**
+     * 编码器名称，用于配置
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 解码逻辑过期的缓存，RedisData.data需要是type类型的对象
+     */
+    default <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        return decode(bytes, RedisData.class);
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 缓存值的编码格式
+ * 二进制编码的值以1个字节的头部开始：低5位为编码器id，最高位表示是否经过LZ4压缩；
+ * 压缩后的格式为 [头部][原始长度 int][LZ4数据]。
+ * 没有头部的值（首字节是可见字符）按JSON文本解码，兼容切换编码器之前写入的缓存。
+ */
+@Component
+public class CacheCodecs {
+
+    private static final int COMPRESSED = 0x80;
+    private static final int ID_MASK = 0x1F;
+
+    private final CacheCodec[] codecs = new CacheCodec[ID_MASK + 1];
+
+    private final CacheCodec defaultCodec;
+
+    /**
+     * 编码结果超过该字节数时压缩，小于等于0表示不压缩
+     */
+    private final int compressThreshold;
+
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    public CacheCodecs(List<CacheCodec> codecList,
+                       @Value("${hmdp.cache.codec:kryo}") String codecName,
+                       @Value("${hmdp.cache.compress-threshold:1024}") int compressThreshold) {
+        CacheCodec selected = null;
+        for (CacheCodec codec : codecList) {
+            codecs[codec.id() & ID_MASK] = codec;
+            if (codec.name().equals(codecName)) {
+                selected = codec;
+            }
+        }
+        if (selected == null) {
+            throw new IllegalArgumentException("未知的缓存编码器: " + codecName);
+        }
+        this.defaultCodec = selected;
+        this.compressThreshold = compressThreshold;
+    }
+
+    public byte[] encode(Object value) {
+        byte[] body = defaultCodec.encode(value);
+        boolean compress = compressThreshold > 0 && body.length > compressThreshold;
+        if (!compress) {
+            // JSON不加头部，保持原有格式
+            if (defaultCodec.id() == JsonCacheCodec.ID) {
+                return body;
+            }
+            byte[] bytes = new byte[body.length + 1];
+            bytes[0] = defaultCodec.id();
+            System.arraycopy(body, 0, bytes, 1, body.length);
+            return bytes;
+        }
+        int maxLength = compressor.maxCompressedLength(body.length);
+        byte[] bytes = new byte[5 + maxLength];
+        bytes[0] = (byte) (defaultCodec.id() | COMPRESSED);
+        ByteBuffer.wrap(bytes, 1, 4).putInt(body.length);
+        int length = compressor.compress(body, 0, body.length, bytes, 5, maxLength);
+        byte[] result = new byte[5 + length];
+        System.arraycopy(bytes, 0, result, 0, result.length);
+        return result;
+    }
+
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Frame frame = unwrap(bytes);
+        return frame.codec.decode(frame.body, type);
+    }
+
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        Frame frame = unwrap(bytes);
+        return frame.codec.decodeLogical(frame.body, type);
+    }
+
+    private Frame unwrap(byte[] bytes) {
+        int header = bytes[0] & 0xFF;
+        // 首字节是可见字符，说明是没有头部的JSON文本
+        if (header >= 0x20 && header < COMPRESSED) {
+            return new Frame(codecs[JsonCacheCodec.ID], bytes);
+        }
+        CacheCodec codec = codecs[header & ID_MASK];
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存编码器id: " + (header & ID_MASK));
+        }
+        if ((header & COMPRESSED) == 0) {
+            byte[] body = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, body, 0, body.length);
+            return new Frame(codec, body);
+        }
+        int length = ByteBuffer.wrap(bytes, 1, 4).getInt();
+        byte[] body = new byte[length];
+        decompressor.decompress(bytes, 5, body, 0, length);
+        return new Frame(codec, body);
+    }
+
+    private static class Frame {
+        private final CacheCodec codec;
+        private final byte[] body;
+
+        private Frame(CacheCodec codec, byte[] body) {
+            this.codec = codec;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RabbitMQConfig;
+import com.hmdp.dto.FeedFanoutTask;
+import com.hmdp.mapper.FollowMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 笔记推送（写扩散）
+ * 消费 {@link RabbitMQConfig#FEED_QUEUE_NAME} 中的推送任务：按粉丝id游标分页读取 tb_follow，
+ * 每页通过管道批量 ZADD feed:{粉丝id}，并用 ZREMRANGEBYRANK 把收件箱裁剪到 inbox-max-size 条。
+ * 每页完成后把进度写入 feed:fanout:{blogId}，失败重试时从上次的位置继续；重复推送同一篇笔记是幂等的。
+ * 任务在投递前先记录到 feed:fanout:{blogId} 和 feed:fanout:pending，投递失败或重试耗尽被丢弃的任务
+ * 由定时清扫在 stale-after 之后重新投递，直到推送完成。
+ */
+@Slf4j
+@Component
+public class FeedFanoutWorker {
+
+    @Resource
+    private FollowMapper followMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    /**
+     * 每页读取并推送的粉丝数量
+     */
+    @Value("${hmdp.feed.fanout.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 收件箱最多保留的笔记数量
+     */
+    @Value("${hmdp.feed.inbox-max-size:1000}")
+    private long inboxMaxSize;
+
+    /**
+     * 任务超过多久(毫秒)没有进度时视为丢失，由清扫重新投递
+     */
+    @Value("${hmdp.feed.fanout.stale-after:300000}")
+    private long staleAfter;
+
+    /**
+     * 每次清扫最多重新投递的任务数
+     */
+    @Value("${hmdp.feed.fanout.sweep-batch-size:100}")
+    private int sweepBatchSize;
+
+    private final AtomicLong taskCount = new AtomicLong();
+    private final AtomicLong runningCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong pushedCount = new AtomicLong();
+    private final AtomicLong resubmittedCount = new AtomicLong();
+
+    /**
+     * 提交推送任务：先记录任务，再投递到队列；投递失败时由清扫重新投递，Redis不可用时抛出异常
+     */
+    public void submit(FeedFanoutTask task) {
+        // 1.记录任务，清扫时需要作者和发布时间重新投递
+        Map<String, String> record = new HashMap<>(8);
+        record.put("status", "PENDING");
+        record.put("authorId", task.getAuthorId().toString());
+        record.put("timestamp", task.getTimestamp().toString());
+        record.put("cursor", "0");
+        record.put("pushed", "0");
+        record.put("updateTime", String.valueOf(System.currentTimeMillis()));
+        String progressKey = FEED_FANOUT_KEY + task.getBlogId();
+        stringRedisTemplate.opsForHash().putAll(progressKey, record);
+        stringRedisTemplate.expire(progressKey, FEED_FANOUT_TTL, TimeUnit.DAYS);
+        stringRedisTemplate.opsForZSet().add(FEED_FANOUT_PENDING_KEY, task.getBlogId().toString(), System.currentTimeMillis());
+        taskCount.incrementAndGet();
+        // 2.投递
+        publish(task);
+    }
+
+    private void publish(FeedFanoutTask task) {
+        try {
+            rabbitTemplate.convertAndSend(RabbitMQConfig.FEED_EXCHANGE_NAME, RabbitMQConfig.FEED_ROUTING_KEY, task);
+        } catch (AmqpException e) {
+            log.error("发送笔记推送任务失败，等待清扫重新投递, blogId: {}", task.getBlogId(), e);
+        }
+    }
+
+    /**
+     * 清扫超过 stale-after 没有进度的任务（投递失败、重试耗尽被丢弃、消费节点宕机），重新投递
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.fanout.sweep-interval:60000}",
+            initialDelayString = "${hmdp.feed.fanout.sweep-interval:60000}")
+    public void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            Set<String> blogIds = stringRedisTemplate.opsForZSet()
+                    .rangeByScore(FEED_FANOUT_PENDING_KEY, 0, now - staleAfter, 0, sweepBatchSize);
+            if (blogIds == null) {
+                return;
+            }
+            for (String blogId : blogIds) {
+                resubmit(blogId, now);
+            }
+        } catch (Exception e) {
+            log.error("清扫笔记推送任务失败", e);
+        }
+    }
+
+    private void resubmit(String blogId, long now) {
+        Map<Object, Object> saved = stringRedisTemplate.opsForHash().entries(FEED_FANOUT_KEY + blogId);
+        // 1.已完成或记录已过期的任务不再处理
+        if (saved.isEmpty() || "DONE".equals(saved.get("status")) || saved.get("authorId") == null) {
+            stringRedisTemplate.opsForZSet().remove(FEED_FANOUT_PENDING_KEY, blogId);
+            return;
+        }
+        // 2.最近还有进度，说明正在推送，推迟到下次检查
+        long updateTime = saved.get("updateTime") == null ? 0 : Long.parseLong(saved.get("updateTime").toString());
+        if (now - updateTime < staleAfter) {
+            stringRedisTemplate.opsForZSet().add(FEED_FANOUT_PENDING_KEY, blogId, updateTime);
+            return;
+        }
+        // 3.先移除再加回，多个节点同时清扫时只有移除成功的节点重新投递
+        Long removed = stringRedisTemplate.opsForZSet().remove(FEED_FANOUT_PENDING_KEY, blogId);
+        if (removed == null || removed == 0) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().add(FEED_FANOUT_PENDING_KEY, blogId, now);
+        log.warn("重新投递笔记推送任务, blogId: {}, 状态: {}, 已推送: {}", blogId, saved.get("status"), saved.get("pushed"));
+        resubmittedCount.incrementAndGet();
+        publish(new FeedFanoutTask(Long.valueOf(blogId),
+                Long.valueOf(saved.get("authorId").toString()), Long.valueOf(saved.get("timestamp").toString())));
+    }
+
+    @RabbitListener(queues = RabbitMQConfig.FEED_QUEUE_NAME)
+    public void listenFeedQueue(FeedFanoutTask task) {
+        String progressKey = FEED_FANOUT_KEY + task.getBlogId();
+        // 1.从上次保存的进度继续
+        Map<Object, Object> saved = stringRedisTemplate.opsForHash().entries(progressKey);
+        if ("DONE".equals(saved.get("status"))) {
+            stringRedisTemplate.opsForZSet().remove(FEED_FANOUT_PENDING_KEY, task.getBlogId().toString());
+            return;
+        }
+        long cursor = saved.get("cursor") == null ? 0 : Long.parseLong(saved.get("cursor").toString());
+        long pushed = saved.get("pushed") == null ? 0 : Long.parseLong(saved.get("pushed").toString());
+        if (saved.isEmpty()) {
+            taskCount.incrementAndGet();
+            // 没有经过submit记录的任务，补充清扫需要的信息
+            Map<String, String> record = new HashMap<>(4);
+            record.put("authorId", task.getAuthorId().toString());
+            record.put("timestamp", task.getTimestamp().toString());
+            stringRedisTemplate.opsForHash().putAll(progressKey, record);
+            stringRedisTemplate.opsForZSet().add(FEED_FANOUT_PENDING_KEY, task.getBlogId().toString(), System.currentTimeMillis());
+        }
+        saveProgress(progressKey, "RUNNING", cursor, pushed);
+        runningCount.incrementAndGet();
+        long begin = System.currentTimeMillis();
+        try {
+            // 2.游标分页推送
+            while (true) {
+                List<Long> followerIds = followMapper.listFollowerIdsAfter(task.getAuthorId(), cursor, batchSize);
+                if (followerIds.isEmpty()) {
+                    break;
+                }
+                push(task, followerIds);
+                cursor = followerIds.get(followerIds.size() - 1);
+                pushed += followerIds.size();
+                pushedCount.addAndGet(followerIds.size());
+                saveProgress(progressKey, "RUNNING", cursor, pushed);
+                if (followerIds.size() < batchSize) {
+                    break;
+                }
+            }
+            // 3.完成
+            saveProgress(progressKey, "DONE", cursor, pushed);
+            stringRedisTemplate.opsForZSet().remove(FEED_FANOUT_PENDING_KEY, task.getBlogId().toString());
+            log.debug("笔记推送完成, blogId: {}, 粉丝数: {}, 耗时: {}ms", task.getBlogId(), pushed, System.currentTimeMillis() - begin);
+        } catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            saveProgress(progressKey, "FAILED", cursor, pushed);
+            log.error("笔记推送失败, blogId: {}, 已推送: {}", task.getBlogId(), pushed, e);
+            // 交给消费者重试，从保存的进度继续；重试耗尽后由清扫重新投递
+            throw e;
+        } finally {
+            runningCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 一页粉丝通过管道一次写入：ZADD 收件箱，并裁剪掉最旧的笔记
+     */
+    private void push(FeedFanoutTask task, List<Long> followerIds) {
+        String member = task.getBlogId().toString();
+        double score = task.getTimestamp();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Long followerId : followerIds) {
+                String key = FEED_KEY + followerId;
+                stringConnection.zAdd(key, score, member);
+                // 按score升序，保留排名最后的inboxMaxSize条
+                stringConnection.zRemRange(key, 0, -inboxMaxSize - 1);
+            }
+            return null;
+        });
+    }
+
+    private void saveProgress(String progressKey, String status, long cursor, long pushed) {
+        Map<String, String> progress = new HashMap<>(4);
+        progress.put("status", status);
+        progress.put("cursor", String.valueOf(cursor));
+        progress.put("pushed", String.valueOf(pushed));
+        progress.put("updateTime", String.valueOf(System.currentTimeMillis()));
+        stringRedisTemplate.opsForHash().putAll(progressKey, progress);
+        stringRedisTemplate.expire(progressKey, FEED_FANOUT_TTL, TimeUnit.DAYS);
+    }
+
+    /**
+     * 某篇笔记的推送进度：status、cursor（最后推送的粉丝id）、pushed（已推送的粉丝数）、authorId、timestamp
+     */
+    public Map<Object, Object> progress(Long blogId) {
+        return stringRedisTemplate.opsForHash().entries(FEED_FANOUT_KEY + blogId);
+    }
+
+    /**
+     * 本节点的推送统计
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tasks", taskCount.get());
+        stats.put("running", runningCount.get());
+        stats.put("failed", failedCount.get());
+        stats.put("pushed", pushedCount.get());
+        stats.put("resubmitted", resubmittedCount.get());
+        stats.put("pending", stringRedisTemplate.opsForZSet().zCard(FEED_FANOUT_PENDING_KEY));
+        stats.put("batchSize", batchSize);
+        stats.put("inboxMaxSize", inboxMaxSize);
+        return stats;
+    }
+}
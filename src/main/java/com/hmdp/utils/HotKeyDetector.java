@@ -0,0 +1,279 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static com.hmdp.utils.RedisConstants.CACHE_HOTKEY_CHANNEL;
+
+/**
+ * 热点key探测
+ * 按 sample-rate 抽样记录key的访问，计入滑动窗口内的count-min sketch（窗口分为若干个槽，每个槽一个sketch，定时轮转清空最旧的槽），
+ * 并维护估算访问量最高的 top-k 个key。估算QPS超过 qps-threshold 的key被提升为热点，
+ * 通过 {@link RedisConstants#CACHE_HOTKEY_CHANNEL} 通知所有节点；热点在 promote-ttl 毫秒内有效，仍然很热时会被再次提升。
+ * 本类只负责判断，热点key的本地缓存由 {@link CacheClient} 维护。
+ * 只有经过 {@link CacheClient} 读取的缓存key会被计数，业务代码直接通过 StringRedisTemplate 访问的key（库存、签到、关注等）不在统计范围内，
+ * 配置项因此放在 hmdp.cache.hotkey 下。
+ */
+@Slf4j
+@Component
+public class HotKeyDetector implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Value("${hmdp.cache.hotkey.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 抽样比例，只有被抽中的访问才计入sketch
+     */
+    @Value("${hmdp.cache.hotkey.sample-rate:0.1}")
+    private double sampleRate;
+
+    /**
+     * 超过该QPS的key被提升为热点
+     */
+    @Value("${hmdp.cache.hotkey.qps-threshold:500}")
+    private double qpsThreshold;
+
+    /**
+     * 滑动窗口的槽数和每个槽的时长(毫秒)
+     */
+    @Value("${hmdp.cache.hotkey.window-slots:5}")
+    private int windowSlots;
+
+    @Value("${hmdp.cache.hotkey.slot-millis:1000}")
+    private long slotMillis;
+
+    /**
+     * count-min sketch的行数和每行的计数器个数
+     */
+    @Value("${hmdp.cache.hotkey.depth:4}")
+    private int depth;
+
+    @Value("${hmdp.cache.hotkey.width:4096}")
+    private int width;
+
+    @Value("${hmdp.cache.hotkey.top-k:20}")
+    private int topK;
+
+    /**
+     * 提升为热点后的有效期(毫秒)
+     */
+    @Value("${hmdp.cache.hotkey.promote-ttl:30000}")
+    private long promoteTtl;
+
+    private CountMinSketch[] slots;
+
+    private volatile int current;
+
+    /**
+     * 估算访问量最高的key -> 估算的窗口内访问次数（已按抽样比例还原）
+     */
+    private final ConcurrentHashMap<String, Long> top = new ConcurrentHashMap<>();
+
+    /**
+     * 热点key -> 热点过期时间
+     */
+    private final ConcurrentHashMap<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService rotator = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hotkey-window");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        slots = new CountMinSketch[windowSlots];
+        for (int i = 0; i < windowSlots; i++) {
+            slots[i] = new CountMinSketch(depth, width);
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_HOTKEY_CHANNEL));
+        rotator.scheduleAtFixedRate(this::rotate, slotMillis, slotMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        rotator.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问
+     * @return key当前是否为热点
+     */
+    public boolean record(String key) {
+        if (!enabled) {
+            return false;
+        }
+        boolean hot = isHot(key);
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return hot;
+        }
+        // 1.计入当前槽，估算整个窗口内的访问次数
+        slots[current].add(key);
+        long estimate = 0;
+        for (CountMinSketch slot : slots) {
+            estimate += slot.estimate(key);
+        }
+        estimate = (long) (estimate / sampleRate);
+        updateTop(key, estimate);
+
+        // 2.超过阈值，提升为热点；已经是热点且剩余有效期超过一半时不重复通知
+        double qps = estimate * 1000.0 / (windowSlots * slotMillis);
+        if (qps < qpsThreshold) {
+            return hot;
+        }
+        Long expireAt = hotKeys.get(key);
+        if (expireAt == null || expireAt - System.currentTimeMillis() < promoteTtl / 2) {
+            promote(key);
+            stringRedisTemplate.convertAndSend(CACHE_HOTKEY_CHANNEL, key);
+            log.info("提升热点key: {}, 估算QPS: {}", key, (long) qps);
+        }
+        return true;
+    }
+
+    public boolean isHot(String key) {
+        Long expireAt = hotKeys.get(key);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            hotKeys.remove(key, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        promote(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void promote(String key) {
+        hotKeys.put(key, System.currentTimeMillis() + promoteTtl);
+    }
+
+    private void updateTop(String key, long estimate) {
+        if (top.size() < topK || top.containsKey(key)) {
+            top.put(key, estimate);
+            return;
+        }
+        // 替换估算值最小的key
+        Map.Entry<String, Long> min = null;
+        for (Map.Entry<String, Long> entry : top.entrySet()) {
+            if (min == null || entry.getValue() < min.getValue()) {
+                min = entry;
+            }
+        }
+        if (min != null && estimate > min.getValue() && top.remove(min.getKey(), min.getValue())) {
+            top.put(key, estimate);
+        }
+    }
+
+    /**
+     * 轮转到下一个槽：清空最旧的槽，top-k中的估算值按比例衰减，过期的热点移除
+     */
+    private void rotate() {
+        int next = (current + 1) % windowSlots;
+        slots[next].clear();
+        current = next;
+        double decay = (windowSlots - 1.0) / windowSlots;
+        top.replaceAll((key, value) -> (long) (value * decay));
+        top.values().removeIf(value -> value == 0);
+        long now = System.currentTimeMillis();
+        hotKeys.values().removeIf(expireAt -> expireAt < now);
+    }
+
+    /**
+     * 热点key和访问量最高的key
+     */
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> hot = new TreeMap<>();
+        hotKeys.forEach((key, expireAt) -> hot.put(key, Math.max(0, expireAt - now)));
+        List<Map.Entry<String, Long>> topList = new ArrayList<>(top.entrySet());
+        topList.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> topQps = new LinkedHashMap<>();
+        double windowSeconds = windowSlots * slotMillis / 1000.0;
+        for (Map.Entry<String, Long> entry : topList) {
+            topQps.put(entry.getKey(), (long) (entry.getValue() / windowSeconds));
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("hotKeys", hot);
+        stats.put("topQps", topQps);
+        return stats;
+    }
+
+    /**
+     * count-min sketch：depth行计数器，每行用不同的种子哈希，估算值取各行的最小值，只会高估不会低估
+     */
+    static class CountMinSketch {
+        private final int depth;
+        private final int width;
+        private final AtomicIntegerArray counters;
+
+        CountMinSketch(int depth, int width) {
+            this.depth = depth;
+            this.width = width;
+            this.counters = new AtomicIntegerArray(depth * width);
+        }
+
+        void add(String key) {
+            long hash = hash(key);
+            for (int row = 0; row < depth; row++) {
+                counters.incrementAndGet(row * width + index(hash, row));
+            }
+        }
+
+        long estimate(String key) {
+            long hash = hash(key);
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                min = Math.min(min, counters.get(row * width + index(hash, row)));
+            }
+            return min;
+        }
+
+        void clear() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+
+        private int index(long hash, int row) {
+            // 双重哈希模拟depth个哈希函数
+            int h = (int) hash + row * (int) (hash >>> 32);
+            return Math.floorMod(h, width);
+        }
+
+        private static long hash(String key) {
+            long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
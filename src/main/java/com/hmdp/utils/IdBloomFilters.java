@@ -0,0 +1,279 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * 商铺、笔记id的布隆过滤器，防止随机id穿透缓存
+ * 启动时流式扫描数据库重建（或从Redis bitmap加载），新增数据时写入本地、Redis，并通过
+ * {@link RedisConstants#BLOOM_ADD_CHANNEL} 通知其他节点；查询时只读本地位数组，不存在的id不产生任何I/O。
+ * 发布订阅可能丢消息，数据也可能绕过应用直接写入数据库，因此每隔 sync-interval 把Redis bitmap合并到本地，
+ * 并按主键增量读取上次同步之后新增的id，避免真实存在的数据被永久判定为不存在。
+ * 过滤器没有准备好时一律放行。
+ */
+@Slf4j
+@Component
+public class IdBloomFilters implements MessageListener {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+
+    /**
+     * 增量同步时每次查询的id数量
+     */
+    private static final int SYNC_BATCH_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 启动时是否扫描数据库重建，关闭时优先从Redis加载
+     */
+    @Value("${hmdp.bloom.rebuild-on-startup:true}")
+    private boolean rebuildOnStartup;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    private final Map<String, RedisBloomFilter> filters = new ConcurrentHashMap<>();
+
+    /**
+     * 已经准备好的过滤器
+     */
+    private final Map<String, Boolean> ready = new ConcurrentHashMap<>();
+
+    /**
+     * 从数据库读到的最大id，增量同步的起点；应用内新增的id不推进它，避免跳过绕过应用写入的、id更小的数据
+     */
+    private final Map<String, AtomicLong> maxIds = new ConcurrentHashMap<>();
+
+    /**
+     * 查询大于某个id的一批id
+     */
+    private final Map<String, BiFunction<Long, Integer, List<Long>>> idsAfter = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        register(SHOP, shopMapper::streamIds, shopMapper::selectMaxId, shopMapper::listIdsAfter);
+        register(BLOG, blogMapper::streamIds, blogMapper::selectMaxId, blogMapper::listIdsAfter);
+    }
+
+    private void register(String name, Supplier<Cursor<Long>> ids, Supplier<Long> maxId,
+                          BiFunction<Long, Integer, List<Long>> after) {
+        RedisBloomFilter filter = new RedisBloomFilter(expectedInsertions, fpp);
+        filters.put(name, filter);
+        maxIds.put(name, new AtomicLong());
+        idsAfter.put(name, after);
+        try {
+            if (!rebuildOnStartup && filter.load(loadBitmap(name))) {
+                Long max = maxId.get();
+                updateMaxId(name, max == null ? 0 : max);
+                log.info("从Redis加载布隆过滤器: {}", name);
+            } else {
+                rebuild(name, ids);
+            }
+            ready.put(name, true);
+        } catch (Exception e) {
+            log.error("布隆过滤器初始化失败，暂不过滤: {}", name, e);
+        }
+    }
+
+    /**
+     * 流式扫描全部id重建过滤器，然后整体替换Redis中的bitmap
+     */
+    private void rebuild(String name, Supplier<Cursor<Long>> ids) {
+        RedisBloomFilter filter = filters.get(name);
+        AtomicLongArray target = filter.beginRebuild();
+        long count = 0;
+        TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        try {
+            count = readOnlyTransaction.execute(status -> {
+                long n = 0;
+                try (Cursor<Long> cursor = ids.get()) {
+                    for (Long id : cursor) {
+                        filter.putTo(target, id);
+                        updateMaxId(name, id);
+                        n++;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return n;
+            });
+        } catch (RuntimeException e) {
+            filter.cancelRebuild();
+            throw e;
+        }
+        filter.finishRebuild(target);
+        // 先写临时key再RENAME，其他节点不会读到一半的bitmap
+        byte[] key = (BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (BLOOM_KEY + name + ":tmp").getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = filter.toBytes(target);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, bytes);
+            connection.rename(tmpKey, key);
+            return null;
+        });
+        log.info("重建布隆过滤器: {}, id数量: {}, 位数: {}", name, count, filter.bitSize());
+    }
+
+    /**
+     * 定期同步：合并Redis bitmap补上丢失的新增通知，再读取数据库中上次同步之后新增的id
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.sync-interval:60000}",
+            initialDelayString = "${hmdp.bloom.sync-interval:60000}")
+    public void sync() {
+        for (String name : ready.keySet()) {
+            try {
+                sync(name);
+            } catch (Exception e) {
+                log.error("同步布隆过滤器失败: {}", name, e);
+            }
+        }
+    }
+
+    private void sync(String name) {
+        RedisBloomFilter filter = filters.get(name);
+        // 1.合并Redis bitmap
+        long merged = filter.merge(loadBitmap(name));
+        if (merged > 0) {
+            log.info("布隆过滤器 {} 从Redis补上 {} 位", name, merged);
+        }
+        // 2.按主键增量读取新增的id，写入本地和Redis
+        AtomicLong maxId = maxIds.get(name);
+        long found = 0;
+        while (true) {
+            List<Long> ids = idsAfter.get(name).apply(maxId.get(), SYNC_BATCH_SIZE);
+            for (Long id : ids) {
+                putLocalAndRedis(filter, name, id);
+                updateMaxId(name, id);
+            }
+            found += ids.size();
+            if (ids.size() < SYNC_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (found > 0) {
+            log.info("布隆过滤器 {} 同步新增id: {} 个", name, found);
+        }
+    }
+
+    private void updateMaxId(String name, long id) {
+        AtomicLong maxId = maxIds.get(name);
+        if (maxId != null) {
+            maxId.accumulateAndGet(id, Math::max);
+        }
+    }
+
+    private byte[] loadBitmap(String name) {
+        byte[] key = (BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+    }
+
+    /**
+     * id是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(String name, Long id) {
+        if (id == null) {
+            return false;
+        }
+        RedisBloomFilter filter = filters.get(name);
+        if (filter == null || !ready.containsKey(name)) {
+            return true;
+        }
+        return filter.mightContain(id);
+    }
+
+    /**
+     * 新增数据后调用：写入本地和Redis，并通知其他节点
+     */
+    public void add(String name, Long id) {
+        RedisBloomFilter filter = filters.get(name);
+        if (filter == null || id == null) {
+            return;
+        }
+        putLocalAndRedis(filter, name, id);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+    }
+
+    private void putLocalAndRedis(RedisBloomFilter filter, String name, Long id) {
+        filter.put(id);
+        byte[] key = (BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+        long[] offsets = filter.offsets(id);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(key, offset, true);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String name = StrUtil.subBefore(body, ":", false);
+        RedisBloomFilter filter = filters.get(name);
+        if (filter == null) {
+            return;
+        }
+        try {
+            long id = Long.parseLong(StrUtil.subAfter(body, ":", false));
+            filter.put(id);
+        } catch (NumberFormatException e) {
+            log.error("无法解析的布隆过滤器消息: {}", body);
+        }
+    }
+}
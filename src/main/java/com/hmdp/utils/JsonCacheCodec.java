@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hutool JSON编码，与原有的缓存格式一致
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte ID = 0;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        RedisData redisData = decode(bytes, RedisData.class);
+        if (redisData.getData() instanceof JSONObject) {
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        }
+        return redisData;
+    }
+}
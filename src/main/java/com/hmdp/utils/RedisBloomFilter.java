@@ -0,0 +1,201 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于位图的布隆过滤器，本地保存一份位数组，Redis中以bitmap保存一份共享副本
+ * 位的编号与Redis的SETBIT一致：第i位位于第i/8个字节，从字节的最高位开始。
+ * 本类只负责位运算，读写Redis、节点间同步由 {@link IdBloomFilters} 完成。
+ */
+public class RedisBloomFilter {
+
+    /**
+     * 位数组长度，64的整数倍
+     */
+    private final long bitSize;
+
+    /**
+     * 哈希函数个数
+     */
+    private final int hashCount;
+
+    private volatile AtomicLongArray bits;
+
+    /**
+     * 重建期间新增的id同时写入正在构建的位数组，重建完成后不会丢失
+     */
+    private volatile AtomicLongArray building;
+
+    public RedisBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bitSize = (m + 63) / 64 * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    /**
+     * 计算id对应的所有位的编号
+     */
+    public long[] offsets(long id) {
+        // 双重哈希：用一个64位哈希的高低两半模拟k个哈希函数
+        long hash = mix(id);
+        long h1 = (int) hash;
+        long h2 = (int) (hash >>> 32);
+        long[] offsets = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, bitSize);
+        }
+        return offsets;
+    }
+
+    /**
+     * 判断id是否可能存在，只读本地位数组，不产生I/O
+     */
+    public boolean mightContain(long id) {
+        AtomicLongArray current = bits;
+        for (long offset : offsets(id)) {
+            if ((current.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在本地位数组中设置id对应的位
+     */
+    public void put(long id) {
+        long[] offsets = offsets(id);
+        set(bits, offsets);
+        AtomicLongArray target = building;
+        if (target != null) {
+            set(target, offsets);
+        }
+    }
+
+    /**
+     * 开始重建，返回新的空位数组
+     */
+    public AtomicLongArray beginRebuild() {
+        AtomicLongArray target = new AtomicLongArray((int) (bitSize / 64));
+        building = target;
+        return target;
+    }
+
+    /**
+     * 用重建好的位数组替换当前位数组
+     */
+    public void finishRebuild(AtomicLongArray target) {
+        bits = target;
+        building = null;
+    }
+
+    public void cancelRebuild() {
+        building = null;
+    }
+
+    public void putTo(AtomicLongArray target, long id) {
+        set(target, offsets(id));
+    }
+
+    /**
+     * 位数组转为Redis bitmap的字节格式
+     */
+    public byte[] toBytes(AtomicLongArray source) {
+        byte[] bytes = new byte[(int) (bitSize / 8)];
+        for (int word = 0; word < source.length(); word++) {
+            long value = source.get(word);
+            while (value != 0) {
+                int bit = Long.numberOfTrailingZeros(value);
+                long offset = ((long) word << 6) + bit;
+                bytes[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+                value &= value - 1;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 从Redis bitmap的字节加载位数组，长度不一致时返回false
+     */
+    public boolean load(byte[] bytes) {
+        if (bytes == null || bytes.length != bitSize / 8) {
+            return false;
+        }
+        bits = fromBytes(bytes);
+        return true;
+    }
+
+    /**
+     * 把Redis bitmap中的位合并（按位或）到本地位数组，补上丢失的新增通知
+     * @return 本地缺失、被补上的位数，长度不一致时返回-1
+     */
+    public long merge(byte[] bytes) {
+        if (bytes == null || bytes.length != bitSize / 8) {
+            return -1;
+        }
+        AtomicLongArray source = fromBytes(bytes);
+        AtomicLongArray current = bits;
+        long added = 0;
+        for (int word = 0; word < source.length(); word++) {
+            long mask = source.get(word);
+            if (mask == 0) {
+                continue;
+            }
+            long value;
+            do {
+                value = current.get(word);
+                if ((value | mask) == value) {
+                    break;
+                }
+            } while (!current.compareAndSet(word, value, value | mask));
+            added += Long.bitCount(mask & ~value);
+        }
+        return added;
+    }
+
+    private AtomicLongArray fromBytes(byte[] bytes) {
+        AtomicLongArray target = new AtomicLongArray((int) (bitSize / 64));
+        for (int i = 0; i < bytes.length; i++) {
+            int value = bytes[i] & 0xFF;
+            while (value != 0) {
+                int highest = Integer.numberOfLeadingZeros(value) - 24;
+                long offset = ((long) i << 3) + highest;
+                target.set((int) (offset >>> 6), target.get((int) (offset >>> 6)) | (1L << (offset & 63)));
+                value &= ~(0x80 >>> highest);
+            }
+        }
+        return target;
+    }
+
+    private static void set(AtomicLongArray target, long[] offsets) {
+        for (long offset : offsets) {
+            int word = (int) (offset >>> 6);
+            long mask = 1L << (offset & 63);
+            long value;
+            do {
+                value = target.get(word);
+                if ((value & mask) != 0) {
+                    break;
+                }
+            } while (!target.compareAndSet(word, value, value | mask));
+        }
+    }
+
+    /**
+     * murmur3的64位混淆函数，打散连续的id
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
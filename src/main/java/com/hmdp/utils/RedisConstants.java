@@ -1,5 +1,8 @@
 package com.hmdp.utils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class RedisConstants {
     public static final String LOGIN_CODE_KEY = "login:code:";
     public static final Long LOGIN_CODE_TTL = 2L;
@@ -10,13 +13,103 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_LOCAL_TTL = 60L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_HOTKEY_CHANNEL = "cache:hotkey";
+    public static final String SHOP_TYPE_VERSION_KEY = "cache:shop-type:version";
+    public static final String CDC_BINLOG_POSITION_KEY = "cdc:binlog:position";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUCKET_KEY = "seckill:bucket:";
+    public static final String SECKILL_STOCK_CHANNEL = "seckill:stock:sync";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_FANOUT_KEY = "feed:fanout:";
+    public static final Long FEED_FANOUT_TTL = 1L;
+    /**
+     * 尚未完成的推送任务，member为blogId，score为最近一次投递或检查的时间
+     */
+    public static final String FEED_FANOUT_PENDING_KEY = "feed:fanout:pending";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    /**
+     * 商铺GEO按经纬度分片的边长(度)，0.5度约55公里，大致覆盖一个城市；修改后需要重新预热GEO
+     */
+    public static final double SHOP_GEO_SHARD_DEGREES = 0.5;
+    public static final String SHOP_GEO_SYNC_CHANNEL = "shop:geo:sync";
+    public static final String SHOP_GEO_SESSION_KEY = "shop:geo:session:";
     public static final String USER_SIGN_KEY = "sign:";
+
+    /**
+     * 秒杀库存key，形如 seckill:stock:{voucherId}，与订单key使用相同的hash tag，保证在Redis Cluster中落在同一个slot
+     */
+    public static String seckillStockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 秒杀下单用户集合key，形如 seckill:order:{voucherId}
+     */
+    public static String seckillOrderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 分桶后的秒杀库存key，形如 seckill:stock:{voucherId:bucket}，不同的桶落在不同的slot
+     */
+    public static String seckillStockKey(Long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 分桶后的下单用户集合key，形如 seckill:order:{voucherId:bucket}
+     */
+    public static String seckillOrderKey(Long voucherId, int bucket) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 商铺所在的GEO分片key，形如 shop:geo:{typeId}:{row}:{col}
+     */
+    public static String shopGeoKey(Long typeId, double x, double y) {
+        return shopGeoKey(typeId, shardIndex(y), shardIndex(x));
+    }
+
+    /**
+     * 与以(x, y)为中心、radius(米)为半径的圆相交的所有GEO分片key
+     */
+    public static List<String> shopGeoKeys(Long typeId, double x, double y, double radius) {
+        double latDegrees = radius / 111_195.0;
+        double lonDegrees = latDegrees / Math.max(0.01, Math.cos(Math.toRadians(Math.min(89.9, Math.abs(y) + latDegrees))));
+        int minRow = shardIndex(Math.max(-90, y - latDegrees));
+        int maxRow = shardIndex(Math.min(90, y + latDegrees));
+        int minCol = shardIndex(x - lonDegrees);
+        int maxCol = shardIndex(x + lonDegrees);
+        List<String> keys = new ArrayList<>((maxRow - minRow + 1) * (maxCol - minCol + 1));
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                keys.add(shopGeoKey(typeId, row, col));
+            }
+        }
+        return keys;
+    }
+
+    private static String shopGeoKey(Long typeId, int row, int col) {
+        return SHOP_GEO_KEY + typeId + ":" + row + ":" + col;
+    }
+
+    private static int shardIndex(double degrees) {
+        return (int) Math.floor(degrees / SHOP_GEO_SHARD_DEGREES);
+    }
 }
@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 重建缓存耗费的时间(毫秒)
+     */
+    private Long delta;
 }
@@ -0,0 +1,175 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分桶路由
+ * 热点券的库存被拆分到K个桶（不同slot的key）上，每个用户按id哈希固定到一个"主桶"：
+ * 用户的下单记录只写在主桶的订单集合中，从而保证跨桶的一人一单；主桶库存耗尽时再去其他桶扣减。
+ * 分桶数量在创建秒杀券时写入 {@link RedisConstants#SECKILL_BUCKET_KEY}，之后不再变化，因此可以在本地缓存；
+ * 还没有分桶key的券（尚未创建或客户端传入的任意id）只短暂缓存为未分桶，券创建后其他节点很快能读到真实的分桶数。
+ */
+@Component
+public class SeckillBucketRouter {
+
+    /**
+     * 单张券允许的最大分桶数
+     */
+    public static final int MAX_BUCKET_COUNT = 64;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本地缓存的券数量上限
+     */
+    private static final int MAX_CACHED_VOUCHERS = 10_000;
+
+    /**
+     * 未分桶的结论在本地保留的时长(秒)
+     */
+    private static final long MISSING_TTL_SECONDS = 5;
+
+    /**
+     * 已写入分桶key的券 -> 分桶数量，分桶数量不再变化
+     */
+    private final Cache<Long, Integer> bucketCounts = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_VOUCHERS)
+            .build();
+
+    /**
+     * 没有分桶key的券，短暂缓存避免每次请求都访问Redis
+     */
+    private final Cache<Long, Boolean> missing = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_VOUCHERS)
+            .expireAfterWrite(MISSING_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    public SeckillBucketRouter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 获取优惠券的分桶数量，1表示未分桶
+     */
+    public int bucketCount(Long voucherId) {
+        Integer cached = bucketCounts.getIfPresent(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        if (missing.getIfPresent(voucherId) != null) {
+            return 1;
+        }
+        String count = stringRedisTemplate.opsForValue().get(SECKILL_BUCKET_KEY + voucherId);
+        if (StrUtil.isBlank(count)) {
+            // 券可能还没有创建，不能永久记为未分桶
+            missing.put(voucherId, Boolean.TRUE);
+            return 1;
+        }
+        int bucketCount = Integer.parseInt(count);
+        bucketCounts.put(voucherId, bucketCount);
+        return bucketCount;
+    }
+
+    /**
+     * 把库存拆分到各个桶并写入Redis
+     */
+    public void initBuckets(Long voucherId, int stock, int bucketCount) {
+        int count = Math.max(1, Math.min(bucketCount, MAX_BUCKET_COUNT));
+        if (count == 1) {
+            stringRedisTemplate.opsForValue().set(seckillStockKey(voucherId), String.valueOf(stock));
+        } else {
+            // 余数分给前面的桶
+            for (int bucket = 0; bucket < count; bucket++) {
+                int bucketStock = stock / count + (bucket < stock % count ? 1 : 0);
+                stringRedisTemplate.opsForValue().set(seckillStockKey(voucherId, bucket), String.valueOf(bucketStock));
+            }
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_BUCKET_KEY + voucherId, String.valueOf(count));
+        bucketCounts.put(voucherId, count);
+        missing.invalidate(voucherId);
+    }
+
+    /**
+     * 预热库存：只写入不存在的库存key，不会覆盖已经开始扣减的库存
+     * @return 是否写入了库存
+     */
+    public boolean warmStock(Long voucherId, int stock) {
+        int count = bucketCount(voucherId);
+        if (count == 1) {
+            return Boolean.TRUE.equals(
+                    stringRedisTemplate.opsForValue().setIfAbsent(seckillStockKey(voucherId), String.valueOf(stock)));
+        }
+        boolean written = false;
+        for (int bucket = 0; bucket < count; bucket++) {
+            int bucketStock = stock / count + (bucket < stock % count ? 1 : 0);
+            written |= Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                    .setIfAbsent(seckillStockKey(voucherId, bucket), String.valueOf(bucketStock)));
+        }
+        return written;
+    }
+
+    /**
+     * 优惠券的全部库存key，未分桶时只有一个
+     */
+    public List<String> stockKeys(Long voucherId) {
+        int count = bucketCount(voucherId);
+        if (count == 1) {
+            return Collections.singletonList(seckillStockKey(voucherId));
+        }
+        List<String> keys = new ArrayList<>(count);
+        for (int bucket = 0; bucket < count; bucket++) {
+            keys.add(seckillStockKey(voucherId, bucket));
+        }
+        return keys;
+    }
+
+    /**
+     * 优惠券的全部订单集合key，未分桶时只有一个
+     */
+    public List<String> orderKeys(Long voucherId) {
+        int count = bucketCount(voucherId);
+        if (count == 1) {
+            return Collections.singletonList(seckillOrderKey(voucherId));
+        }
+        List<String> keys = new ArrayList<>(count);
+        for (int bucket = 0; bucket < count; bucket++) {
+            keys.add(seckillOrderKey(voucherId, bucket));
+        }
+        return keys;
+    }
+
+    /**
+     * 用户的主桶
+     */
+    public int homeBucket(Long userId, int bucketCount) {
+        // 乘以黄金分割常数打散连续的用户id
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), bucketCount);
+    }
+
+    /**
+     * 用户在该券下的库存key：未分桶时为唯一的库存key，分桶时为主桶的库存key
+     */
+    public String stockKey(Long voucherId, Long userId) {
+        int count = bucketCount(voucherId);
+        return count == 1 ? seckillStockKey(voucherId) : seckillStockKey(voucherId, homeBucket(userId, count));
+    }
+
+    /**
+     * 用户在该券下的订单集合key：未分桶时为唯一的订单key，分桶时为主桶的订单key
+     */
+    public String orderKey(Long voucherId, Long userId) {
+        int count = bucketCount(voucherId);
+        return count == 1 ? seckillOrderKey(voucherId) : seckillOrderKey(voucherId, homeBucket(userId, count));
+    }
+}
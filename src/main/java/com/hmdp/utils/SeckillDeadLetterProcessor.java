@@ -0,0 +1,392 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RabbitMQConfig;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 死信队列处理器
+ * 消费 {@link RabbitMQConfig#DLX_QUEUE_NAME} 中重试后依然失败的订单，并对失败原因分类：
+ * 数据库的瞬时故障（连接失败、锁超时等）按指数退避重试，仍然失败则重新入队等待下次处理；
+ * 永久性失败以及数据库库存不足没有落库的订单执行补偿脚本，回补Redis库存并释放用户的下单资格，避免库存被失败的订单永久占用。
+ * 退避重试在独立的线程池中执行，不占用正常订单的单写者通道，因此死信订单可能与同一用户在通道中的订单并发落库，
+ * 一人一单由 tb_voucher_order 的 (voucher_id, user_id) 唯一索引保证，唯一索引冲突视为订单已经存在。
+ */
+@Slf4j
+@Component
+public class SeckillDeadLetterProcessor {
+
+    private static final DefaultRedisScript<Long> COMPENSATE_SCRIPT;
+
+    static {
+        COMPENSATE_SCRIPT = new DefaultRedisScript<>();
+        COMPENSATE_SCRIPT.setLocation(new ClassPathResource("seckill_compensate.lua"));
+        COMPENSATE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 统计最近恢复吞吐量的时间窗口(秒)
+     */
+    private static final int RATE_WINDOW_SECONDS = 60;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MessageConverter messageConverter;
+
+    @Resource
+    private AmqpAdmin amqpAdmin;
+
+    @Resource
+    private SeckillOrderLanes seckillOrderLanes;
+
+    @Resource
+    private SeckillBucketRouter seckillBucketRouter;
+
+    @Resource
+    private SeckillStockGate seckillStockGate;
+
+    /**
+     * 瞬时故障的最大尝试次数
+     */
+    @Value("${hmdp.seckill.dlq.max-attempts:5}")
+    private int maxAttempts;
+
+    /**
+     * 首次重试的等待时间(毫秒)，之后每次翻倍
+     */
+    @Value("${hmdp.seckill.dlq.initial-interval:200}")
+    private long initialInterval;
+
+    /**
+     * 重试等待时间的上限(毫秒)
+     */
+    @Value("${hmdp.seckill.dlq.max-interval:5000}")
+    private long maxInterval;
+
+    /**
+     * 死信处理线程数
+     */
+    @Value("${hmdp.seckill.dlq.threads:2}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder compensated = new LongAdder();
+    private final LongAdder requeued = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * 本节点正在处理的死信消息数
+     */
+    private final AtomicInteger processing = new AtomicInteger();
+
+    /**
+     * 最近RATE_WINDOW_SECONDS秒内每秒处理完成（恢复或补偿）的消息数，按秒取模循环使用
+     */
+    private final AtomicLongArray doneSeconds = new AtomicLongArray(RATE_WINDOW_SECONDS);
+    private final AtomicLongArray doneCounts = new AtomicLongArray(RATE_WINDOW_SECONDS);
+
+    private enum Outcome {
+        /**
+         * 订单落库成功
+         */
+        RECOVERED,
+        /**
+         * 瞬时故障，重试次数用完
+         */
+        TRANSIENT,
+        /**
+         * 永久性失败，或数据库库存不足没有落库
+         */
+        PERMANENT
+    }
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int index;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "seckill-dlq-" + index++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @RabbitListener(queues = RabbitMQConfig.DLX_QUEUE_NAME,
+            containerFactory = RabbitMQConfig.BATCH_LISTENER_FACTORY,
+            autoStartup = "${hmdp.seckill.dlq.enabled:true}")
+    public void listenDeadLetterQueue(List<Message> messages, Channel channel) throws IOException {
+        received.add(messages.size());
+        log.info("接收到死信订单消息: {} 条", messages.size());
+        processing.addAndGet(messages.size());
+        try {
+            doListen(messages, channel);
+        } finally {
+            processing.addAndGet(-messages.size());
+        }
+    }
+
+    private void doListen(List<Message> messages, Channel channel) throws IOException {
+        // 1.解析消息，无法解析的消息无法补偿，记录日志后丢弃；按用户所在通道分组
+        Map<Integer, List<Message>> laneMessages = new HashMap<>();
+        Map<Integer, List<VoucherOrder>> laneOrders = new HashMap<>();
+        for (Message message : messages) {
+            try {
+                message.getMessageProperties().setInferredArgumentType(VoucherOrder.class);
+                VoucherOrder voucherOrder = (VoucherOrder) messageConverter.fromMessage(message);
+                int lane = seckillOrderLanes.laneOf(voucherOrder.getUserId());
+                laneMessages.computeIfAbsent(lane, k -> new ArrayList<>()).add(message);
+                laneOrders.computeIfAbsent(lane, k -> new ArrayList<>()).add(voucherOrder);
+            } catch (Exception e) {
+                log.error("死信消息解析失败，丢弃: {}", message, e);
+                discarded.increment();
+                channel.basicAck(message.getMessageProperties().getDeliveryTag(), false);
+            }
+        }
+
+        // 2.在死信线程池中按通道整批重试落库；这里不经过单写者通道，与通道中的订单并发时由唯一索引去重
+        Map<Integer, Future<Outcome[]>> results = new HashMap<>();
+        laneOrders.forEach((lane, orders) -> results.put(lane, executor.submit(() -> process(orders))));
+
+        // 3.根据每个订单的结果确认或补偿
+        for (Map.Entry<Integer, Future<Outcome[]>> entry : results.entrySet()) {
+            List<Message> accepted = laneMessages.get(entry.getKey());
+            List<VoucherOrder> voucherOrders = laneOrders.get(entry.getKey());
+            Outcome[] outcomes = SeckillOrderLanes.await(entry.getValue());
+            for (int i = 0; i < accepted.size(); i++) {
+                settle(channel, accepted.get(i), voucherOrders.get(i), outcomes[i]);
+            }
+        }
+    }
+
+    /**
+     * 整批重试落库，返回每个订单的处理结果；库存不足没有落库的订单视为永久失败，
+     * 整批永久失败时逐条处理，找出需要补偿的订单
+     */
+    private Outcome[] process(List<VoucherOrder> orders) throws InterruptedException {
+        Outcome[] outcomes = new Outcome[orders.size()];
+        Set<VoucherOrder> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+        Outcome outcome = runWithRetry(() -> {
+            rejected.clear();
+            rejected.addAll(voucherOrderService.createVoucherOrderBatch(orders));
+            return true;
+        });
+        // 唯一索引冲突时整批回滚，按永久失败处理，逐条落库时再把重复的订单视为已经存在
+        for (int i = 0; i < orders.size(); i++) {
+            VoucherOrder voucherOrder = orders.get(i);
+            if (outcome == Outcome.PERMANENT) {
+                outcomes[i] = runWithRetry(() -> createVoucherOrder(voucherOrder));
+            } else if (outcome == Outcome.RECOVERED && rejected.contains(voucherOrder)) {
+                outcomes[i] = Outcome.PERMANENT;
+            } else {
+                outcomes[i] = outcome;
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * 执行落库，瞬时故障按指数退避重试
+     * @param task 订单落库返回true，库存不足没有落库返回false
+     */
+    private Outcome runWithRetry(Callable<Boolean> task) throws InterruptedException {
+        long interval = initialInterval;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (task.call()) {
+                    return Outcome.RECOVERED;
+                }
+                log.error("死信订单库存不足，没有落库");
+                return Outcome.PERMANENT;
+            } catch (Exception e) {
+                if (!isTransient(e)) {
+                    log.error("死信订单处理失败，不可重试", e);
+                    return Outcome.PERMANENT;
+                }
+                if (attempt >= maxAttempts) {
+                    log.error("死信订单处理失败，重试{}次后放弃", attempt, e);
+                    return Outcome.TRANSIENT;
+                }
+                log.warn("死信订单处理遇到瞬时故障，{}ms后第{}次重试: {}", interval, attempt, e.getMessage());
+                retries.increment();
+                TimeUnit.MILLISECONDS.sleep(interval);
+                interval = Math.min(interval * 2, maxInterval);
+            }
+        }
+    }
+
+    /**
+     * 单个订单落库，唯一索引冲突说明之前的某次投递或通道中的同一订单已经落库
+     */
+    private boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        try {
+            return voucherOrderService.createVoucherOrder(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            log.info("死信订单已经存在, orderId: {}", voucherOrder.getId());
+            return true;
+        }
+    }
+
+    /**
+     * 判断异常链中是否存在数据库的瞬时故障
+     */
+    private static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof TransientDataAccessException
+                    || t instanceof RecoverableDataAccessException
+                    || t instanceof CannotCreateTransactionException
+                    || t instanceof SQLTransientException
+                    || t instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void settle(Channel channel, Message message, VoucherOrder voucherOrder, Outcome outcome) throws IOException {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        switch (outcome) {
+            case RECOVERED:
+                recovered.increment();
+                markDone();
+                channel.basicAck(deliveryTag, false);
+                break;
+            case TRANSIENT:
+                // 数据库仍不可用，重新入队，下次再处理
+                requeued.increment();
+                channel.basicNack(deliveryTag, false, true);
+                break;
+            default:
+                try {
+                    compensate(voucherOrder);
+                    compensated.increment();
+                    markDone();
+                    channel.basicAck(deliveryTag, false);
+                } catch (Exception e) {
+                    log.error("订单补偿失败, orderId: {}", voucherOrder.getId(), e);
+                    requeued.increment();
+                    channel.basicNack(deliveryTag, false, true);
+                }
+        }
+    }
+
+    /**
+     * 回补Redis库存并释放用户的下单资格，然后广播最新库存，解除各节点的本地售罄标记
+     */
+    public void compensate(VoucherOrder voucherOrder) {
+        Long voucherId = voucherOrder.getVoucherId();
+        Long userId = voucherOrder.getUserId();
+        int quantity = voucherOrder.getQuantity() == null ? 1 : voucherOrder.getQuantity();
+        Long stock = stringRedisTemplate.execute(
+                COMPENSATE_SCRIPT,
+                Arrays.asList(seckillBucketRouter.stockKey(voucherId, userId), seckillBucketRouter.orderKey(voucherId, userId)),
+                userId.toString(), String.valueOf(quantity));
+        if (stock == null || stock < 0) {
+            log.info("订单已经补偿过, orderId: {}", voucherOrder.getId());
+            return;
+        }
+        log.info("订单补偿完成, orderId: {}, voucherId: {}, userId: {}, quantity: {}",
+                voucherOrder.getId(), voucherId, userId, quantity);
+        // 分桶的券需要汇总所有桶的库存
+        List<String> stockKeys = seckillBucketRouter.stockKeys(voucherId);
+        if (stockKeys.size() > 1) {
+            stock = 0L;
+            for (String value : stringRedisTemplate.opsForValue().multiGet(stockKeys)) {
+                stock += value == null ? 0 : Math.max(0, Long.parseLong(value));
+            }
+        }
+        seckillStockGate.publish(voucherId, stock.intValue());
+    }
+
+    private void markDone() {
+        long second = System.currentTimeMillis() / 1000;
+        int index = (int) (second % RATE_WINDOW_SECONDS);
+        long slotSecond = doneSeconds.get(index);
+        if (slotSecond != second && doneSeconds.compareAndSet(index, slotSecond, second)) {
+            doneCounts.set(index, 0);
+        }
+        doneCounts.incrementAndGet(index);
+    }
+
+    /**
+     * 死信队列中待处理的消息数，加上本节点正在处理的消息数
+     */
+    public long pendingCount() {
+        Properties properties = amqpAdmin.getQueueProperties(RabbitMQConfig.DLX_QUEUE_NAME);
+        Object depth = properties == null ? null : properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT);
+        return (depth == null ? 0 : ((Number) depth).longValue()) + processing.get();
+    }
+
+    /**
+     * 死信队列积压量与处理统计
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Properties properties = amqpAdmin.getQueueProperties(RabbitMQConfig.DLX_QUEUE_NAME);
+        stats.put("depth", properties == null ? null : properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT));
+        stats.put("consumers", properties == null ? null : properties.get(RabbitAdmin.QUEUE_CONSUMER_COUNT));
+        stats.put("received", received.sum());
+        stats.put("recovered", recovered.sum());
+        stats.put("compensated", compensated.sum());
+        stats.put("requeued", requeued.sum());
+        stats.put("discarded", discarded.sum());
+        stats.put("retries", retries.sum());
+        long now = System.currentTimeMillis() / 1000;
+        long done = 0;
+        for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+            if (now - doneSeconds.get(i) < RATE_WINDOW_SECONDS) {
+                done += doneCounts.get(i);
+            }
+        }
+        stats.put("throughputPerSecond", (double) done / RATE_WINDOW_SECONDS);
+        return stats;
+    }
+}
@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀key格式迁移
+ * 库存和下单集合的key由 seckill:stock:<id> / seckill:order:<id> 改为带hash tag的 seckill:stock:{<id>} / seckill:order:{<id>}，
+ * 启动时SCAN出旧格式的key，用 RENAMENX 原子地改为新格式（保留过期时间）；新key已经存在时保留旧key并告警，需要人工核对。
+ * 在 {@link SeckillScheduleCache} 之前执行，库存预热不会抢先写入新key。
+ * 旧格式的秒杀脚本在Redis Cluster中会跨slot，不可能在集群中使用过，集群模式下跳过迁移。
+ */
+@Slf4j
+@Component
+public class SeckillKeyMigration {
+
+    /**
+     * 旧格式的key：前缀后直接是券id，不含hash tag
+     */
+    private static final Pattern LEGACY_KEY = Pattern.compile("^seckill:(stock|order):(\\d+)$");
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.key-migration.enabled:true}")
+    private boolean enabled;
+
+    @PostConstruct
+    public void migrate() {
+        if (!enabled) {
+            return;
+        }
+        RedisConnectionFactory connectionFactory = stringRedisTemplate.getConnectionFactory();
+        if (connectionFactory instanceof LettuceConnectionFactory
+                && ((LettuceConnectionFactory) connectionFactory).isClusterAware()) {
+            log.info("集群模式，跳过秒杀key迁移");
+            return;
+        }
+        // 1.找出旧格式的库存key和下单集合key
+        List<String> legacyKeys = new ArrayList<>();
+        legacyKeys.addAll(scan(SECKILL_STOCK_KEY + "*"));
+        legacyKeys.addAll(scan(SECKILL_ORDER_KEY + "*"));
+        if (legacyKeys.isEmpty()) {
+            return;
+        }
+        // 2.逐个改名，新key已经存在时不覆盖
+        int renamed = 0;
+        for (String key : legacyKeys) {
+            Matcher matcher = LEGACY_KEY.matcher(key);
+            if (!matcher.matches()) {
+                continue;
+            }
+            Long voucherId = Long.valueOf(matcher.group(2));
+            String newKey = "stock".equals(matcher.group(1)) ? seckillStockKey(voucherId) : seckillOrderKey(voucherId);
+            if (Boolean.TRUE.equals(stringRedisTemplate.renameIfAbsent(key, newKey))) {
+                renamed++;
+            } else {
+                log.warn("秒杀key迁移跳过, 新key已存在: {} -> {}", key, newKey);
+            }
+        }
+        log.info("秒杀key迁移完成: {} 个", renamed);
+    }
+
+    private List<String> scan(String pattern) {
+        List<String> keys = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+            ScanOptions options = ScanOptions.scanOptions().match(pattern).count(1000).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    if (LEGACY_KEY.matcher(key).matches()) {
+                        keys.add(key);
+                    }
+                }
+            }
+            return null;
+        });
+        return keys;
+    }
+}
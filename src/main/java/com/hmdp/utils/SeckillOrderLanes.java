@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.*;
+
+/**
+ * 秒杀订单单写者通道
+ * 按用户id哈希把订单分配到N个单线程通道，同一用户的订单总是在同一个线程中串行落库，
+ * 代替按用户加分布式锁；跨节点的串行由RabbitMQ一致性哈希分区队列 + 单活跃消费者保证。
+ */
+@Slf4j
+@Component
+public class SeckillOrderLanes {
+
+    /**
+     * 通道数量
+     */
+    @Value("${hmdp.seckill.consumer.lanes:8}")
+    private int laneCount;
+
+    private ExecutorService[] lanes;
+
+    @PostConstruct
+    public void init() {
+        lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "seckill-order-lane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public int laneCount() {
+        return laneCount;
+    }
+
+    /**
+     * 用户所在的通道
+     */
+    public int laneOf(Long userId) {
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), laneCount);
+    }
+
+    /**
+     * 把任务提交到指定通道，不等待结果
+     */
+    public <T> Future<T> submit(int lane, Callable<T> task) {
+        return lanes[lane].submit(task);
+    }
+
+    /**
+     * 在用户所在的通道中执行任务并等待完成，任务抛出的异常原样抛给调用方
+     */
+    public void execute(Long userId, Runnable task) {
+        await(lanes[laneOf(userId)].submit(task));
+    }
+
+    /**
+     * 等待通道任务完成，任务抛出的运行时异常原样抛出
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待订单通道被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
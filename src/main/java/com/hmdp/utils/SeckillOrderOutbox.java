@@ -0,0 +1,321 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 秒杀订单本地发件箱（Transactional Outbox）
+ * 下单成功后先把订单追加到本节点的内存映射日志文件中再响应用户，由后台中继线程按顺序投递到RabbitMQ，
+ * 收到broker的发布确认后才推进提交位置；全部确认后截断日志复用文件空间。
+ * 进程重启时从提交位置开始回放未确认的订单，消息可能重复投递，由消费者按用户和优惠券去重。
+ * <p>
+ * 文件格式：16字节文件头（已提交的物理位置）+ 若干条记录，每条记录为 [int 长度][long 订单id][long 用户id][long 优惠券id][int 数量]，
+ * 长度为0表示日志结束。
+ */
+@Slf4j
+@Component
+public class SeckillOrderOutbox {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 28;
+    private static final int ENTRY_SIZE = 4 + RECORD_SIZE;
+
+    @Value("${hmdp.seckill.outbox.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.outbox.file:outbox/seckill-order.log}")
+    private String file;
+
+    /**
+     * 日志文件大小(字节)
+     */
+    @Value("${hmdp.seckill.outbox.capacity:67108864}")
+    private int capacity;
+
+    /**
+     * 每次追加后是否刷盘，关闭时只能保证进程崩溃不丢失，不能保证操作系统崩溃不丢失
+     */
+    @Value("${hmdp.seckill.outbox.sync:false}")
+    private boolean sync;
+
+    @Value("${hmdp.seckill.outbox.relay-batch-size:200}")
+    private int relayBatchSize;
+
+    @Value("${hmdp.seckill.outbox.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    private final SeckillOrderPublisher seckillOrderPublisher;
+
+    private RandomAccessFile randomAccessFile;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * 下一条记录的写入位置（物理位置）
+     */
+    private int writePosition;
+
+    /**
+     * 已确认投递的位置（物理位置），之前的记录都可以丢弃
+     */
+    private int committedPosition;
+
+    /**
+     * 因截断或压缩而被丢弃的字节数，逻辑位置 = 物理位置 + compacted，中继线程只使用逻辑位置，不受截断影响
+     */
+    private long compacted;
+
+    private volatile boolean running;
+
+    private Thread relayThread;
+
+    public SeckillOrderOutbox(SeckillOrderPublisher seckillOrderPublisher) {
+        this.seckillOrderPublisher = seckillOrderPublisher;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        // 1.打开并映射日志文件
+        File logFile = new File(file);
+        File parent = logFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("无法创建outbox目录: " + parent);
+        }
+        randomAccessFile = new RandomAccessFile(logFile, "rw");
+        // 同一个日志文件只能被一个进程使用，多个实例共用默认路径时启动失败，而不是互相覆盖记录
+        FileLock lock;
+        try {
+            lock = randomAccessFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            randomAccessFile.close();
+            throw new IOException("outbox日志文件已被其他实例占用，请为每个实例配置不同的 hmdp.seckill.outbox.file: "
+                    + logFile.getAbsolutePath());
+        }
+        int size = (int) Math.max(randomAccessFile.length(), capacity);
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        // 2.从提交位置开始扫描，找到日志末尾，之间的记录都是未确认的，需要回放
+        committedPosition = (int) Math.max(buffer.getLong(0), HEADER_SIZE);
+        writePosition = committedPosition;
+        while (writePosition + ENTRY_SIZE <= buffer.capacity() && buffer.getInt(writePosition) == RECORD_SIZE) {
+            writePosition += ENTRY_SIZE;
+        }
+        int pending = (writePosition - committedPosition) / ENTRY_SIZE;
+        if (pending > 0) {
+            log.info("outbox中有 {} 条未确认的订单消息，开始回放", pending);
+        }
+
+        // 3.启动中继线程
+        running = true;
+        relayThread = new Thread(this::relay, "seckill-outbox-relay");
+        relayThread.setDaemon(true);
+        relayThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(relayThread);
+        relayThread.join(TimeUnit.SECONDS.toMillis(1));
+        synchronized (this) {
+            buffer.force();
+        }
+        randomAccessFile.close();
+    }
+
+    /**
+     * 追加一条订单到发件箱
+     * @return 是否写入成功，未开启或空间已满时返回false，调用方需要直接发送
+     */
+    public boolean append(VoucherOrder voucherOrder) {
+        if (!enabled) {
+            return false;
+        }
+        synchronized (this) {
+            if (writePosition + ENTRY_SIZE > buffer.capacity() && !compact()) {
+                log.error("outbox已满，订单直接发送: {}", voucherOrder.getId());
+                return false;
+            }
+            int position = writePosition;
+            // 先写结束标记和记录内容，最后写长度，保证崩溃时不会读到写了一半的记录
+            if (position + ENTRY_SIZE + 4 <= buffer.capacity()) {
+                buffer.putInt(position + ENTRY_SIZE, 0);
+            }
+            buffer.putLong(position + 4, voucherOrder.getId());
+            buffer.putLong(position + 12, voucherOrder.getUserId());
+            buffer.putLong(position + 20, voucherOrder.getVoucherId());
+            buffer.putInt(position + 28, voucherOrder.getQuantity() == null ? 1 : voucherOrder.getQuantity());
+            buffer.putInt(position, RECORD_SIZE);
+            writePosition = position + ENTRY_SIZE;
+            if (sync) {
+                buffer.force();
+            }
+        }
+        LockSupport.unpark(relayThread);
+        return true;
+    }
+
+    /**
+     * 未确认投递的订单数
+     */
+    public synchronized int pendingCount() {
+        return enabled ? (writePosition - committedPosition) / ENTRY_SIZE : 0;
+    }
+
+    /**
+     * 空间不足时把未确认的记录移动到文件头之后
+     * 只在目标区域与未确认的记录不重叠时压缩：先复制记录并写入结束标记，最后才修改文件头中的提交位置，
+     * 任何一步崩溃时文件头要么仍指向完整的原记录，要么指向完整的副本；重叠时不压缩，由调用方直接发送
+     */
+    private boolean compact() {
+        int shift = committedPosition - HEADER_SIZE;
+        int length = writePosition - committedPosition;
+        if (shift == 0 || length >= shift) {
+            return false;
+        }
+        for (int offset = 0; offset < length; offset += 4) {
+            buffer.putInt(HEADER_SIZE + offset, buffer.getInt(committedPosition + offset));
+        }
+        buffer.putInt(HEADER_SIZE + length, 0);
+        if (sync) {
+            buffer.force();
+        }
+        writePosition = HEADER_SIZE + length;
+        moveCommitted(HEADER_SIZE, shift);
+        return true;
+    }
+
+    private void moveCommitted(int position, int shift) {
+        committedPosition = position;
+        compacted += shift;
+        buffer.putLong(0, committedPosition);
+    }
+
+    /**
+     * 从逻辑位置from开始读取最多max条记录
+     */
+    private synchronized List<OutboxEntry> read(long from, int max) {
+        List<OutboxEntry> entries = new ArrayList<>();
+        int position = (int) (from - compacted);
+        while (entries.size() < max && position < writePosition) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(buffer.getLong(position + 4));
+            voucherOrder.setUserId(buffer.getLong(position + 12));
+            voucherOrder.setVoucherId(buffer.getLong(position + 20));
+            voucherOrder.setQuantity(buffer.getInt(position + 28));
+            position += ENTRY_SIZE;
+            entries.add(new OutboxEntry(voucherOrder, position + compacted));
+        }
+        return entries;
+    }
+
+    /**
+     * 推进提交位置到逻辑位置end，全部确认后截断日志
+     */
+    private synchronized void commit(long end) {
+        int position = (int) (end - compacted);
+        if (position == writePosition) {
+            // 全部确认，截断日志，从文件头之后重新写入
+            writePosition = HEADER_SIZE;
+            buffer.putInt(HEADER_SIZE, 0);
+            moveCommitted(HEADER_SIZE, position - HEADER_SIZE);
+        } else {
+            committedPosition = position;
+            buffer.putLong(0, committedPosition);
+        }
+    }
+
+    private void relay() {
+        long cursor;
+        synchronized (this) {
+            cursor = committedPosition + compacted;
+        }
+        while (running) {
+            try {
+                List<OutboxEntry> entries = read(cursor, relayBatchSize);
+                if (entries.isEmpty()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                    continue;
+                }
+                long confirmed = publish(entries, cursor);
+                if (confirmed > cursor) {
+                    commit(confirmed);
+                    cursor = confirmed;
+                }
+                if (confirmed < entries.get(entries.size() - 1).end) {
+                    // 有消息未被确认，稍后从未确认的位置重新投递
+                    LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                }
+            } catch (Exception e) {
+                log.error("outbox中继异常", e);
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * 发送一批订单并等待发布确认
+     * @return 连续确认成功的最后一条记录的结束位置
+     */
+    private long publish(List<OutboxEntry> entries, long cursor) {
+        // 整批连续发布，由发布器批量确认
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(entries.size());
+        for (OutboxEntry entry : entries) {
+            futures.add(seckillOrderPublisher.publish(entry.voucherOrder));
+        }
+        long confirmed = cursor;
+        for (int i = 0; i < entries.size(); i++) {
+            Long orderId = entries.get(i).voucherOrder.getId();
+            try {
+                if (!futures.get(i).get(confirmTimeout, TimeUnit.MILLISECONDS)) {
+                    log.error("outbox消息投递失败, orderId: {}", orderId);
+                    break;
+                }
+            } catch (Exception e) {
+                log.error("等待outbox消息确认失败, orderId: {}", orderId, e);
+                break;
+            }
+            confirmed = entries.get(i).end;
+        }
+        return confirmed;
+    }
+
+    private static class OutboxEntry {
+        private final VoucherOrder voucherOrder;
+        /**
+         * 记录结束的逻辑位置
+         */
+        private final long end;
+
+        private OutboxEntry(VoucherOrder voucherOrder, long end) {
+            this.voucherOrder = voucherOrder;
+            this.end = end;
+        }
+    }
+}
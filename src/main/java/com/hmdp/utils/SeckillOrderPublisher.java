@@ -0,0 +1,295 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RabbitMQConfig;
+import com.hmdp.entity.VoucherOrder;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀订单批量确认发布器
+ * 所有订单消息由一个后台线程在专用的confirm模式channel上连续发布，不再每条消息等待一次确认：
+ * broker按delivery tag返回确认（multiple=true时一次确认一个区间），发布器据此完成每个订单的Future。
+ * channel建立在 {@link CachingConnectionFactory} 管理的共享连接上（沿用其地址、认证、连接名和断线重建），
+ * 但不经过它的channel缓存，也不使用RabbitTemplate的确认回调，确认和退回由本类直接监听。
+ * 同时统计在途消息数与发布到确认的延迟，供监控接口查看。
+ */
+@Slf4j
+@Component
+public class SeckillOrderPublisher {
+
+    /**
+     * 每批最多连续发布的消息数
+     */
+    @Value("${hmdp.seckill.publisher.batch-size:200}")
+    private int batchSize;
+
+    /**
+     * 等待broker确认的超时时间(毫秒)，超时的消息按失败处理
+     */
+    @Value("${hmdp.seckill.publisher.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    private final CachingConnectionFactory connectionFactory;
+
+    private final MessageConverter messageConverter;
+
+    private final DefaultMessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+
+    /**
+     * 等待发布的订单
+     */
+    private final BlockingQueue<PendingOrder> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * 已发布、等待确认的订单，key为delivery tag
+     */
+    private final ConcurrentSkipListMap<Long, PendingOrder> inFlight = new ConcurrentSkipListMap<>();
+
+    /**
+     * 已发布、等待确认的订单，key为订单id，用于关联被退回的消息
+     */
+    private final ConcurrentHashMap<String, PendingOrder> inFlightByOrderId = new ConcurrentHashMap<>();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private volatile Channel channel;
+
+    private volatile boolean running;
+
+    private Thread publishThread;
+
+    public SeckillOrderPublisher(CachingConnectionFactory connectionFactory, MessageConverter messageConverter) {
+        this.connectionFactory = connectionFactory;
+        this.messageConverter = messageConverter;
+    }
+
+    @PostConstruct
+    public void init() {
+        running = true;
+        publishThread = new Thread(this::publishLoop, "seckill-order-publisher");
+        publishThread.setDaemon(true);
+        publishThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        publishThread.interrupt();
+        publishThread.join(TimeUnit.SECONDS.toMillis(1));
+        closeChannel("发布器已关闭");
+    }
+
+    /**
+     * 异步发布一条订单消息
+     * @return broker确认后完成的Future，true表示已被broker接收并路由，false表示被拒绝、退回或超时
+     */
+    public CompletableFuture<Boolean> publish(VoucherOrder voucherOrder) {
+        PendingOrder pendingOrder = new PendingOrder(voucherOrder);
+        queue.offer(pendingOrder);
+        return pendingOrder.future;
+    }
+
+    /**
+     * 等待发布和等待确认的订单数
+     */
+    public int pendingCount() {
+        return queue.size() + inFlight.size();
+    }
+
+    /**
+     * 发布器监控数据
+     */
+    public Map<String, Object> stats() {
+        long ackCount = acked.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", queue.size());
+        stats.put("inFlight", inFlight.size());
+        stats.put("published", published.get());
+        stats.put("acked", ackCount);
+        stats.put("failed", failed.get());
+        stats.put("avgConfirmLatencyMs", ackCount == 0 ? 0 : totalLatencyNanos.get() / ackCount / 1_000_000.0);
+        stats.put("maxConfirmLatencyMs", maxLatencyNanos.get() / 1_000_000.0);
+        return stats;
+    }
+
+    private void publishLoop() {
+        List<PendingOrder> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                PendingOrder first = queue.poll(10, TimeUnit.MILLISECONDS);
+                expireTimeouts();
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                Channel ch = openChannel();
+                for (PendingOrder pendingOrder : batch) {
+                    publishOne(ch, pendingOrder);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("发布秒杀订单消息失败", e);
+                batch.forEach(pendingOrder -> complete(pendingOrder, false));
+                closeChannel("发布失败: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void publishOne(Channel ch, PendingOrder pendingOrder) throws Exception {
+        VoucherOrder voucherOrder = pendingOrder.voucherOrder;
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setMessageId(voucherOrder.getId().toString());
+        Message message = messageConverter.toMessage(voucherOrder, messageProperties);
+        AMQP.BasicProperties properties = propertiesConverter.fromMessageProperties(
+                message.getMessageProperties(), StandardCharsets.UTF_8.name());
+
+        long deliveryTag = ch.getNextPublishSeqNo();
+        pendingOrder.publishedAt = System.nanoTime();
+        inFlight.put(deliveryTag, pendingOrder);
+        inFlightByOrderId.put(voucherOrder.getId().toString(), pendingOrder);
+        // 以userId作为路由键，同一用户的订单总是进入同一个分区队列
+        ch.basicPublish(RabbitMQConfig.PARTITION_EXCHANGE_NAME, voucherOrder.getUserId().toString(),
+                true, properties, message.getBody());
+        published.incrementAndGet();
+    }
+
+    private Channel openChannel() throws Exception {
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        if (channel != null) {
+            // channel被broker或网络关闭：新channel的delivery tag从1重新开始，旧的在途消息再也不会被确认，
+            // 先全部按失败处理，由outbox重新投递，避免被新channel的确认误判为成功
+            closeChannel("channel已被关闭");
+        }
+        // 共享连接断开后由连接工厂重新建立；缓存的channel会被包装为RabbitTemplate的确认channel，这里直接在底层连接上创建
+        Channel ch = connectionFactory.createConnection().getDelegate().createChannel();
+        ch.confirmSelect();
+        ch.addConfirmListener((deliveryTag, multiple) -> onConfirm(ch, deliveryTag, multiple, true),
+                (deliveryTag, multiple) -> onConfirm(ch, deliveryTag, multiple, false));
+        ch.addReturnListener(returned -> {
+            // 路由失败的消息会先于确认被退回
+            PendingOrder pendingOrder = inFlightByOrderId.get(returned.getProperties().getMessageId());
+            if (pendingOrder != null) {
+                pendingOrder.returned = true;
+            }
+            log.error("消息丢失: exchange: {}, route: {}, replyCode: {}, replyText: {}",
+                    returned.getExchange(), returned.getRoutingKey(), returned.getReplyCode(), returned.getReplyText());
+        });
+        ch.addShutdownListener(cause -> {
+            if (!cause.isInitiatedByApplication()) {
+                log.error("发布channel异常关闭", cause);
+            }
+        });
+        channel = ch;
+        return ch;
+    }
+
+    /**
+     * 处理broker确认，multiple为true时确认所有小于等于deliveryTag的消息
+     */
+    private void onConfirm(Channel ch, long deliveryTag, boolean multiple, boolean ack) {
+        // 只处理当前channel的确认，旧channel的delivery tag与当前的在途消息无关
+        if (ch != channel) {
+            return;
+        }
+        if (multiple) {
+            ConcurrentNavigableMap<Long, PendingOrder> confirmed = inFlight.headMap(deliveryTag, true);
+            confirmed.values().forEach(pendingOrder -> complete(pendingOrder, ack && !pendingOrder.returned));
+            confirmed.clear();
+        } else {
+            PendingOrder pendingOrder = inFlight.remove(deliveryTag);
+            if (pendingOrder != null) {
+                complete(pendingOrder, ack && !pendingOrder.returned);
+            }
+        }
+    }
+
+    private void complete(PendingOrder pendingOrder, boolean success) {
+        // 超时后才到达的确认会再次进入，只统计一次
+        if (!pendingOrder.future.complete(success)) {
+            return;
+        }
+        inFlightByOrderId.remove(pendingOrder.voucherOrder.getId().toString());
+        if (success) {
+            long latency = System.nanoTime() - pendingOrder.publishedAt;
+            acked.incrementAndGet();
+            totalLatencyNanos.addAndGet(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * 超时未确认的消息按失败处理
+     */
+    private void expireTimeouts() {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(confirmTimeout);
+        while (!inFlight.isEmpty()) {
+            Map.Entry<Long, PendingOrder> eldest = inFlight.firstEntry();
+            if (eldest == null || eldest.getValue().publishedAt > deadline) {
+                return;
+            }
+            if (inFlight.remove(eldest.getKey(), eldest.getValue())) {
+                log.error("等待消息确认超时, orderId: {}", eldest.getValue().voucherOrder.getId());
+                complete(eldest.getValue(), false);
+            }
+        }
+    }
+
+    /**
+     * 关闭channel，所有在途消息按失败处理
+     */
+    private void closeChannel(String reason) {
+        log.info("关闭发布channel: {}", reason);
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+        } catch (Exception e) {
+            log.debug("关闭发布channel失败: {}", e.getMessage());
+        }
+        channel = null;
+        inFlight.values().forEach(pendingOrder -> complete(pendingOrder, false));
+        inFlight.clear();
+    }
+
+    private static class PendingOrder {
+        private final VoucherOrder voucherOrder;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private volatile long publishedAt;
+        private volatile boolean returned;
+
+        private PendingOrder(VoucherOrder voucherOrder) {
+            this.voucherOrder = voucherOrder;
+        }
+    }
+}
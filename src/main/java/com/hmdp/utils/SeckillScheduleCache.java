@@ -0,0 +1,226 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 秒杀时间窗口本地缓存
+ * 启动时加载所有未结束的秒杀券的开始、结束时间，之后按 update_time 增量刷新，下单时在内存中O(1)校验时间窗口；
+ * 本地没有的券查询一次数据库并缓存，不存在的券视为已结束，结束已久的券替换为已结束的占位，绝不默认放行；
+ * 对于尚未开始的秒杀，在开始前 prewarm-ahead 毫秒预热Redis中的库存key。
+ */
+@Slf4j
+@Component
+@DependsOn("seckillKeyMigration")
+public class SeckillScheduleCache {
+
+    /**
+     * 秒杀进行中
+     */
+    public static final int OPEN = 0;
+    /**
+     * 秒杀尚未开始，与秒杀脚本的返回值一致
+     */
+    public static final int NOT_STARTED = 4;
+    /**
+     * 秒杀已经结束，与秒杀脚本的返回值一致
+     */
+    public static final int ENDED = 5;
+
+    /**
+     * 结束已久的券的占位，结束时间为1，状态总是ENDED，传入秒杀脚本时同样判定为已结束
+     */
+    private static final Window ENDED_TOMBSTONE = new Window(0, 1);
+
+    /**
+     * 不是秒杀券或不存在，状态总是ENDED；每次刷新时清除，之后新建的券可以重新加载
+     */
+    private static final Window MISSING = new Window(0, 1);
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillBucketRouter seckillBucketRouter;
+
+    @Resource
+    private SeckillStockGate seckillStockGate;
+
+    /**
+     * 在秒杀开始前多少毫秒预热库存
+     */
+    @Value("${hmdp.seckill.schedule.prewarm-ahead:60000}")
+    private long prewarmAhead;
+
+    /**
+     * 秒杀结束后时间窗口在本地保留的时长(毫秒)，超过后从缓存中移除
+     */
+    @Value("${hmdp.seckill.schedule.retention:86400000}")
+    private long retention;
+
+    private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, ScheduledFuture<?>> prewarmTasks = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService prewarmExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-stock-prewarm");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 已加载的最大更新时间，增量刷新的起点
+     */
+    private volatile LocalDateTime lastUpdateTime;
+
+    @PostConstruct
+    public void init() {
+        // 先取数据库时间作为增量刷新的起点，全量加载期间的修改也会在下次刷新时拉取
+        lastUpdateTime = seckillVoucherMapper.selectNow();
+        LocalDateTime since = LocalDateTime.now().minusNanos(TimeUnit.MILLISECONDS.toNanos(retention));
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .select("voucher_id", "begin_time", "end_time", "update_time")
+                .gt("end_time", since)
+                .list();
+        vouchers.forEach(this::put);
+        log.info("加载秒杀时间窗口: {} 个", vouchers.size());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        prewarmExecutor.shutdownNow();
+    }
+
+    /**
+     * 增量刷新：只查询上次刷新之后修改过的秒杀券
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.schedule.refresh-interval:5000}")
+    public void refresh() {
+        // 1.拉取变更，update_time取>=，同一秒内的多次修改不会漏掉
+        seckillVoucherService.query()
+                .select("voucher_id", "begin_time", "end_time", "update_time")
+                .ge("update_time", lastUpdateTime)
+                .list()
+                .forEach(this::put);
+        // 2.结束已久的时间窗口替换为共享的占位，不能直接删除，否则再次查询时会被当作本地没有；清除不存在的券的占位
+        long expireBefore = System.currentTimeMillis() - retention;
+        windows.replaceAll((id, window) -> window != ENDED_TOMBSTONE && window != MISSING
+                && window.endMillis > 0 && window.endMillis < expireBefore ? ENDED_TOMBSTONE : window);
+        windows.values().removeIf(window -> window == MISSING);
+    }
+
+    /**
+     * 获取优惠券的时间窗口；本地没有时（其他节点刚新建的券、启动时没有加载的已结束的券）查询一次数据库并缓存，
+     * 查询不在 computeIfAbsent 中执行，不会阻塞同一个桶上的其他券
+     */
+    public Window window(Long voucherId) {
+        Window window = windows.get(voucherId);
+        if (window != null) {
+            return window;
+        }
+        SeckillVoucher voucher = seckillVoucherService.query()
+                .select("voucher_id", "begin_time", "end_time", "update_time")
+                .eq("voucher_id", voucherId)
+                .one();
+        Window loaded = voucher == null ? MISSING : toWindow(voucher);
+        // 增量刷新可能已经写入更新的时间窗口，不覆盖
+        Window previous = windows.putIfAbsent(voucherId, loaded);
+        return previous == null ? loaded : previous;
+    }
+
+    /**
+     * 新增或修改秒杀券后更新本地时间窗口，并安排库存预热
+     */
+    public void put(SeckillVoucher voucher) {
+        Window window = toWindow(voucher);
+        windows.put(voucher.getVoucherId(), window);
+        LocalDateTime updateTime = voucher.getUpdateTime();
+        if (updateTime != null && (lastUpdateTime == null || updateTime.isAfter(lastUpdateTime))) {
+            lastUpdateTime = updateTime;
+        }
+        schedulePrewarm(voucher.getVoucherId(), window);
+    }
+
+    private void schedulePrewarm(Long voucherId, Window window) {
+        // 只预热尚未开始的秒杀，已经开始的秒杀库存以Redis为准
+        long delay = window.beginMillis - prewarmAhead - System.currentTimeMillis();
+        ScheduledFuture<?> previous;
+        if (window.beginMillis <= System.currentTimeMillis()) {
+            previous = prewarmTasks.remove(voucherId);
+        } else {
+            previous = prewarmTasks.put(voucherId, prewarmExecutor.schedule(
+                    () -> prewarm(voucherId), Math.max(0, delay), TimeUnit.MILLISECONDS));
+        }
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void prewarm(Long voucherId) {
+        try {
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher == null) {
+                return;
+            }
+            if (seckillBucketRouter.warmStock(voucherId, voucher.getStock())) {
+                seckillStockGate.publish(voucherId, voucher.getStock());
+                log.info("预热秒杀库存, voucherId: {}, stock: {}", voucherId, voucher.getStock());
+            }
+        } catch (Exception e) {
+            log.error("预热秒杀库存失败, voucherId: {}", voucherId, e);
+        } finally {
+            prewarmTasks.remove(voucherId);
+        }
+    }
+
+    private static Window toWindow(SeckillVoucher voucher) {
+        return new Window(toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()));
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 秒杀时间窗口，0表示不限制
+     */
+    @Getter
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class Window {
+        private final long beginMillis;
+        private final long endMillis;
+
+        /**
+         * @return OPEN、NOT_STARTED 或 ENDED
+         */
+        public int status(long now) {
+            if (beginMillis > 0 && now < beginMillis) {
+                return NOT_STARTED;
+            }
+            if (endMillis > 0 && now > endMillis) {
+                return ENDED;
+            }
+            return OPEN;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_CHANNEL;
+
+/**
+ * 秒杀本地库存闸门
+ * 每个节点在内存中维护各秒杀券的近似库存，库存归零（售罄）后直接在本地拒绝请求，不再访问Redis。
+ * 近似库存只会被本节点的成功下单扣减，因此总是大于等于Redis中的真实库存，本地判定售罄一定是准确的；
+ * 售罄和补库存通过Redis发布订阅 {@link RedisConstants#SECKILL_STOCK_CHANNEL} 在所有节点间同步，
+ * 消息格式为 "voucherId:stock"。
+ */
+@Slf4j
+@Component
+public class SeckillStockGate implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 优惠券id -> 近似库存，不存在表示本节点还不知道库存，放行交给Redis判断
+     */
+    private final ConcurrentHashMap<Long, AtomicInteger> localStock = new ConcurrentHashMap<>();
+
+    public SeckillStockGate(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_STOCK_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券在本地是否已经售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        AtomicInteger stock = localStock.get(voucherId);
+        return stock != null && stock.get() <= 0;
+    }
+
+    /**
+     * 本节点下单成功，扣减近似库存
+     */
+    public void onSuccess(Long voucherId) {
+        AtomicInteger stock = localStock.get(voucherId);
+        if (stock != null) {
+            stock.decrementAndGet();
+        }
+    }
+
+    /**
+     * Redis判定库存不足，在本地标记售罄
+     */
+    public void markSoldOut(Long voucherId) {
+        reset(voucherId, 0);
+    }
+
+    /**
+     * 重置本地近似库存
+     */
+    public void reset(Long voucherId, int stock) {
+        localStock.computeIfAbsent(voucherId, id -> new AtomicInteger()).set(stock);
+    }
+
+    /**
+     * 向所有节点广播优惠券的最新库存，新增秒杀券或回补库存时调用
+     */
+    public void publish(Long voucherId, int stock) {
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_CHANNEL, voucherId + ":" + stock);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String voucherId = StrUtil.subBefore(body, ":", false);
+        String stock = StrUtil.subAfter(body, ":", false);
+        try {
+            reset(Long.valueOf(voucherId), Integer.parseInt(stock));
+        } catch (NumberFormatException e) {
+            log.error("无法解析的库存同步消息: {}", body);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RabbitMQConfig;
+import com.hmdp.dto.SeckillReconcileDTO;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 秒杀库存对账
+ * 定期用一条GROUP BY流式读取数据库中每张秒杀券的订单数，按批通过管道查询Redis下单集合的SCARD，
+ * 找出Redis中已预扣但没有落库的订单（消息丢失）。差异需要连续两次对账都存在才会被确认，避开正在投递中的订单；
+ * 开启修复后，连续缺失订单超过 min-missing-age 的用户会被补偿：从下单集合中移除并回补库存。
+ * 本节点outbox、发布器或订单队列、死信队列中还有未处理的消息时暂停修复，避免补偿仍在路上的订单。
+ * 对账只使用快照读和SCARD/SSCAN，不会锁表，也不会阻塞下单链路。
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Resource
+    private SeckillBucketRouter seckillBucketRouter;
+
+    @Resource
+    private SeckillDeadLetterProcessor seckillDeadLetterProcessor;
+
+    @Resource
+    private SeckillOrderOutbox seckillOrderOutbox;
+
+    @Resource
+    private SeckillOrderPublisher seckillOrderPublisher;
+
+    @Resource
+    private AmqpAdmin amqpAdmin;
+
+    @Resource
+    private String[] seckillQueueNames;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 是否自动修复，关闭时只报告差异
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    /**
+     * 每批管道查询的秒杀券数量
+     */
+    @Value("${hmdp.seckill.reconcile.batch-size:200}")
+    private int batchSize;
+
+    /**
+     * 每次对账最多修复的用户数，避免一次修复过多
+     */
+    @Value("${hmdp.seckill.reconcile.max-repair:1000}")
+    private int maxRepair;
+
+    /**
+     * 用户持续缺失订单多久(毫秒)之后才补偿，需要远大于消息投递和死信重试的耗时
+     */
+    @Value("${hmdp.seckill.reconcile.min-missing-age:600000}")
+    private long minMissingAge;
+
+    /**
+     * 只对账结束时间在最近多久(毫秒)之内或尚未结束的秒杀券
+     */
+    @Value("${hmdp.seckill.schedule.retention:86400000}")
+    private long retention;
+
+    private TransactionTemplate readOnlyTransaction;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * 上一次对账的差异，voucherId -> diff
+     */
+    private Map<Long, Long> previousDiffs = new HashMap<>();
+
+    /**
+     * 上一次对账发现的缺失订单的用户，voucherId -> (userId -> 首次发现的时间)
+     */
+    private Map<Long, Map<String, Long>> previousMissing = new HashMap<>();
+
+    private volatile Map<String, Object> lastReport = Collections.emptyMap();
+
+    @PostConstruct
+    public void init() {
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        if (!enabled || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            doReconcile();
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void doReconcile() {
+        long begin = System.nanoTime();
+        LocalDateTime since = LocalDateTime.now().minusNanos(TimeUnit.MILLISECONDS.toNanos(retention));
+        List<SeckillReconcileDTO> discrepancies = new ArrayList<>();
+        Map<Long, Long> currentDiffs = new HashMap<>();
+        int[] checked = {0};
+
+        // 1.流式读取数据库中的订单数，按批与Redis比对；游标打开期间同一连接不能执行其他查询，修复放到之后
+        readOnlyTransaction.execute(status -> {
+            try (Cursor<SeckillReconcileDTO> cursor = voucherOrderMapper.streamOrderCounts(since)) {
+                List<SeckillReconcileDTO> batch = new ArrayList<>(batchSize);
+                for (SeckillReconcileDTO item : cursor) {
+                    batch.add(item);
+                    if (batch.size() >= batchSize) {
+                        checked[0] += compareBatch(batch, currentDiffs, discrepancies);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    checked[0] += compareBatch(batch, currentDiffs, discrepancies);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+        previousDiffs = currentDiffs;
+
+        // 2.修复已确认的差异；还有订单在投递或重试中时暂停修复，保留缺失用户的首次发现时间
+        String pending = repair ? pendingOrders() : null;
+        if (pending != null) {
+            log.info("秒杀库存对账暂停修复: {}", pending);
+        }
+        boolean canRepair = repair && pending == null;
+        Map<Long, Map<String, Long>> currentMissing = new HashMap<>();
+        int repaired = 0;
+        for (SeckillReconcileDTO item : discrepancies) {
+            if (item.getDiff() > 0) {
+                log.warn("秒杀库存对账发现差异: {}", item);
+            }
+            if (!canRepair || !item.getConfirmed() || item.getDiff() <= 0 || repaired >= maxRepair) {
+                item.setRepaired(0);
+                continue;
+            }
+            int count = repairVoucher(item.getVoucherId(), currentMissing, maxRepair - repaired);
+            item.setRepaired(count);
+            repaired += count;
+        }
+        if (pending == null) {
+            previousMissing = currentMissing;
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("runAt", LocalDateTime.now());
+        report.put("durationMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        report.put("vouchersChecked", checked[0]);
+        report.put("repaired", repaired);
+        report.put("repairPaused", pending);
+        report.put("discrepancies", discrepancies);
+        lastReport = report;
+        log.info("秒杀库存对账完成, 秒杀券: {}, 差异: {}, 修复: {}", checked[0], discrepancies.size(), repaired);
+    }
+
+    /**
+     * 管道查询一批秒杀券在Redis中的下单用户数和库存，与数据库比对
+     * @return 在Redis中有数据、参与比对的秒杀券数量
+     */
+    private int compareBatch(List<SeckillReconcileDTO> batch, Map<Long, Long> currentDiffs,
+                             List<SeckillReconcileDTO> discrepancies) {
+        List<List<String>> orderKeys = new ArrayList<>(batch.size());
+        List<List<String>> stockKeys = new ArrayList<>(batch.size());
+        for (SeckillReconcileDTO item : batch) {
+            orderKeys.add(seckillBucketRouter.orderKeys(item.getVoucherId()));
+            stockKeys.add(seckillBucketRouter.stockKeys(item.getVoucherId()));
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < batch.size(); i++) {
+                orderKeys.get(i).forEach(stringConnection::sCard);
+                stockKeys.get(i).forEach(stringConnection::get);
+            }
+            return null;
+        });
+
+        int compared = 0;
+        int index = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            SeckillReconcileDTO item = batch.get(i);
+            long reserved = 0;
+            for (int k = 0; k < orderKeys.get(i).size(); k++) {
+                Object value = results.get(index++);
+                reserved += value == null ? 0 : (Long) value;
+            }
+            long stock = 0;
+            boolean loaded = false;
+            for (int k = 0; k < stockKeys.get(i).size(); k++) {
+                Object value = results.get(index++);
+                if (value != null) {
+                    loaded = true;
+                    stock += Long.parseLong(value.toString());
+                }
+            }
+            // 库存和下单集合都不存在，说明这张券没有加载到Redis
+            if (!loaded && reserved == 0) {
+                continue;
+            }
+            compared++;
+            long diff = reserved - item.getOrderCount();
+            if (diff == 0) {
+                continue;
+            }
+            Long previous = previousDiffs.get(item.getVoucherId());
+            item.setRedisStock(stock);
+            item.setReservedCount(reserved);
+            item.setDiff(diff);
+            item.setConfirmed(previous != null && Long.signum(previous) == Long.signum(diff));
+            currentDiffs.put(item.getVoucherId(), diff);
+            discrepancies.add(item);
+        }
+        return compared;
+    }
+
+    /**
+     * 找出在Redis中已下单、但数据库中没有订单的用户，连续两次对账都缺失的用户才补偿
+     * @return 补偿的用户数
+     */
+    private int repairVoucher(Long voucherId, Map<Long, Map<String, Long>> currentMissing, int limit) {
+        Set<String> missing = new HashSet<>();
+        ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+        for (String orderKey : seckillBucketRouter.orderKeys(voucherId)) {
+            try (org.springframework.data.redis.core.Cursor<String> cursor =
+                         stringRedisTemplate.opsForSet().scan(orderKey, options)) {
+                List<String> chunk = new ArrayList<>(batchSize);
+                while (cursor.hasNext()) {
+                    chunk.add(cursor.next());
+                    if (chunk.size() >= batchSize) {
+                        missing.addAll(findMissingUsers(voucherId, chunk));
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    missing.addAll(findMissingUsers(voucherId, chunk));
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Long> previous = previousMissing.getOrDefault(voucherId, Collections.emptyMap());
+        Map<String, Long> firstSeen = new HashMap<>(missing.size() * 4 / 3 + 1);
+        for (String userId : missing) {
+            firstSeen.put(userId, previous.getOrDefault(userId, now));
+        }
+        currentMissing.put(voucherId, firstSeen);
+
+        int repaired = 0;
+        for (String userId : missing) {
+            if (repaired >= limit) {
+                break;
+            }
+            if (now - firstSeen.get(userId) < minMissingAge) {
+                continue;
+            }
+            // 丢失的订单无法得知购买数量，按1件回补
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setUserId(Long.valueOf(userId));
+            voucherOrder.setVoucherId(voucherId);
+            voucherOrder.setQuantity(1);
+            seckillDeadLetterProcessor.compensate(voucherOrder);
+            repaired++;
+        }
+        return repaired;
+    }
+
+    /**
+     * 检查是否还有未落库的订单在路上：本节点outbox、发布器中未确认的消息，订单队列和死信队列中的消息
+     * @return 有时返回原因，没有时返回null
+     */
+    private String pendingOrders() {
+        int outbox = seckillOrderOutbox.pendingCount();
+        if (outbox > 0) {
+            return "outbox中有 " + outbox + " 条未确认的订单";
+        }
+        int publishing = seckillOrderPublisher.pendingCount();
+        if (publishing > 0) {
+            return "发布器中有 " + publishing + " 条未确认的订单";
+        }
+        for (String queueName : seckillQueueNames) {
+            Properties properties = amqpAdmin.getQueueProperties(queueName);
+            Object depth = properties == null ? null : properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT);
+            if (depth != null && ((Number) depth).longValue() > 0) {
+                return "订单队列 " + queueName + " 中有 " + depth + " 条消息";
+            }
+        }
+        long deadLetters = seckillDeadLetterProcessor.pendingCount();
+        if (deadLetters > 0) {
+            return "死信队列 " + RabbitMQConfig.DLX_QUEUE_NAME + " 中有 " + deadLetters + " 条待处理的消息";
+        }
+        return null;
+    }
+
+    private List<String> findMissingUsers(Long voucherId, List<String> userIds) {
+        Set<String> exists = new HashSet<>();
+        voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .in("user_id", userIds)
+                .list()
+                .forEach(order -> exists.add(order.getUserId().toString()));
+        List<String> missing = new ArrayList<>();
+        for (String userId : userIds) {
+            if (!exists.contains(userId)) {
+                missing.add(userId);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * 最近一次对账的结果
+     */
+    public Map<String, Object> lastReport() {
+        return lastReport;
+    }
+}
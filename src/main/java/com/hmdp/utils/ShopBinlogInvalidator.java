@@ -0,0 +1,350 @@
+package com.hmdp.utils;
+
+import com.github.shyiko.mysql.binlog.BinaryLogClient;
+import com.github.shyiko.mysql.binlog.event.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订阅MySQL binlog失效商铺缓存
+ * 作为从库连接MySQL，解析 tb_shop、tb_shop_type 的行变更：删除 cache:shop:{id}（并通知各节点失效本地缓存），
+ * 按新的坐标和类型更新GEO分片 shop:geo:{typeId}:{row}:{col} 和各节点的本地空间索引，新增的商铺加入布隆过滤器；商铺类型变更时递增类型目录的版本号。
+ * 变更先进入队列，每隔 flush-interval 毫秒合并后通过管道一次写入Redis，成功后把binlog位置保存到Redis，重启后从该位置继续。
+ * 需要MySQL开启 binlog_format=ROW，账号需要 REPLICATION SLAVE、REPLICATION CLIENT 权限；只需在一个节点开启。
+ */
+@Slf4j
+@Component
+public class ShopBinlogInvalidator {
+
+    private static final String SHOP_TABLE = "tb_shop";
+    private static final String SHOP_TYPE_TABLE = "tb_shop_type";
+
+    /**
+     * tb_shop中用到的列的下标，与建表语句中列的顺序一致
+     */
+    private static final int SHOP_ID = 0;
+    private static final int SHOP_TYPE_ID = 2;
+    private static final int SHOP_X = 6;
+    private static final int SHOP_Y = 7;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private ShopTypeCatalog shopTypeCatalog;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Value("${hmdp.cdc.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.cdc.host:localhost}")
+    private String host;
+
+    @Value("${hmdp.cdc.port:3306}")
+    private int port;
+
+    @Value("${hmdp.cdc.username:${spring.datasource.username:root}}")
+    private String username;
+
+    @Value("${hmdp.cdc.password:${spring.datasource.password:}}")
+    private String password;
+
+    @Value("${hmdp.cdc.database:hmdp}")
+    private String database;
+
+    /**
+     * 作为从库的server-id，不能与集群中其他实例重复
+     */
+    @Value("${hmdp.cdc.server-id:10001}")
+    private long serverId;
+
+    /**
+     * 合并变更写入Redis的间隔(毫秒)
+     */
+    @Value("${hmdp.cdc.flush-interval:200}")
+    private long flushInterval;
+
+    /**
+     * 连接失败后的重试间隔(毫秒)
+     */
+    @Value("${hmdp.cdc.retry-interval:5000}")
+    private long retryInterval;
+
+    private BinaryLogClient client;
+
+    /**
+     * tableId -> 表名，只记录本库中关心的表
+     */
+    private final Map<Long, String> tables = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<ShopChange> changes = new LinkedBlockingQueue<>();
+
+    private final AtomicBoolean shopTypeChanged = new AtomicBoolean();
+
+    /**
+     * 上次写入失败的变更，下次优先写入，保持变更顺序
+     */
+    private List<ShopChange> failed = new ArrayList<>();
+
+    /**
+     * 已放入队列的事件的binlog位置
+     */
+    private volatile String binlogFilename;
+    private volatile long binlogPosition;
+
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong evictCount = new AtomicLong();
+
+    private volatile boolean stopped;
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "shop-binlog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        client = new BinaryLogClient(host, port, username, password);
+        client.setServerId(serverId);
+        client.setKeepAlive(true);
+        // 1.从上次保存的位置继续，没有时从当前位置开始
+        Map<Object, Object> saved = stringRedisTemplate.opsForHash().entries(CDC_BINLOG_POSITION_KEY);
+        if (saved.get("filename") != null && saved.get("position") != null) {
+            client.setBinlogFilename(saved.get("filename").toString());
+            client.setBinlogPosition(Long.parseLong(saved.get("position").toString()));
+            log.info("从binlog位置继续: {}", saved);
+        }
+        client.registerEventListener(this::onEvent);
+        // 2.后台连接，MySQL不可用时不影响启动
+        executor.execute(this::connect);
+        executor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (client == null) {
+            return;
+        }
+        stopped = true;
+        try {
+            client.disconnect();
+        } catch (IOException e) {
+            log.warn("断开binlog连接失败", e);
+        }
+        executor.shutdownNow();
+        flush();
+    }
+
+    private void connect() {
+        while (!stopped) {
+            try {
+                client.connect(retryInterval);
+                log.info("已连接binlog: {}:{}, 位置: {}/{}", host, port,
+                        client.getBinlogFilename(), client.getBinlogPosition());
+                return;
+            } catch (IOException | TimeoutException e) {
+                log.warn("连接binlog失败，{}ms后重试: {}", retryInterval, e.getMessage());
+            }
+            try {
+                Thread.sleep(retryInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void onEvent(Event event) {
+        EventHeaderV4 header = event.getHeader();
+        EventType type = header.getEventType();
+        EventData data = event.getData();
+        if (type == EventType.ROTATE) {
+            RotateEventData rotate = (RotateEventData) data;
+            binlogFilename = rotate.getBinlogFilename();
+            binlogPosition = rotate.getBinlogPosition();
+            return;
+        }
+        if (type == EventType.TABLE_MAP) {
+            TableMapEventData tableMap = (TableMapEventData) data;
+            if (database.equals(tableMap.getDatabase())) {
+                tables.put(tableMap.getTableId(), tableMap.getTable());
+            }
+        } else if (EventType.isWrite(type)) {
+            WriteRowsEventData write = (WriteRowsEventData) data;
+            String table = tables.get(write.getTableId());
+            for (Serializable[] row : write.getRows()) {
+                onRowChange(table, null, row);
+            }
+        } else if (EventType.isUpdate(type)) {
+            UpdateRowsEventData update = (UpdateRowsEventData) data;
+            String table = tables.get(update.getTableId());
+            for (Map.Entry<Serializable[], Serializable[]> row : update.getRows()) {
+                onRowChange(table, row.getKey(), row.getValue());
+            }
+        } else if (EventType.isDelete(type)) {
+            DeleteRowsEventData delete = (DeleteRowsEventData) data;
+            String table = tables.get(delete.getTableId());
+            for (Serializable[] row : delete.getRows()) {
+                onRowChange(table, row, null);
+            }
+        }
+        // 事务提交后再推进位置：保存的位置之前的变更一定已经入队，且恢复时从事务边界开始
+        if (type == EventType.XID && header.getNextPosition() > 0) {
+            binlogPosition = header.getNextPosition();
+        }
+    }
+
+    /**
+     * @param before 变更前的行，新增时为null
+     * @param after 变更后的行，删除时为null
+     */
+    private void onRowChange(String table, Serializable[] before, Serializable[] after) {
+        if (SHOP_TYPE_TABLE.equals(table)) {
+            shopTypeChanged.set(true);
+            eventCount.incrementAndGet();
+            return;
+        }
+        if (!SHOP_TABLE.equals(table)) {
+            return;
+        }
+        Serializable[] row = after != null ? after : before;
+        ShopChange change = new ShopChange();
+        change.id = ((Number) row[SHOP_ID]).longValue();
+        change.inserted = before == null;
+        if (before != null) {
+            change.oldTypeId = ((Number) before[SHOP_TYPE_ID]).longValue();
+            change.oldX = ((Number) before[SHOP_X]).doubleValue();
+            change.oldY = ((Number) before[SHOP_Y]).doubleValue();
+        }
+        if (after != null) {
+            change.typeId = ((Number) after[SHOP_TYPE_ID]).longValue();
+            change.x = ((Number) after[SHOP_X]).doubleValue();
+            change.y = ((Number) after[SHOP_Y]).doubleValue();
+        }
+        changes.add(change);
+        eventCount.incrementAndGet();
+    }
+
+    /**
+     * 合并队列中的变更，批量删除缓存、更新GEO，然后保存binlog位置
+     */
+    private synchronized void flush() {
+        String filename = binlogFilename != null ? binlogFilename : (client == null ? null : client.getBinlogFilename());
+        long position = binlogPosition;
+        List<ShopChange> batch = failed;
+        failed = new ArrayList<>();
+        changes.drainTo(batch);
+        boolean typeChanged = shopTypeChanged.getAndSet(false);
+        if (batch.isEmpty() && !typeChanged) {
+            return;
+        }
+        try {
+            // 1.删除商铺缓存，同一个商铺的多次变更只删除一次
+            Set<String> keys = new LinkedHashSet<>();
+            batch.forEach(change -> keys.add(CACHE_SHOP_KEY + change.id));
+            cacheClient.deleteAll(keys);
+            if (typeChanged) {
+                shopTypeCatalog.bump();
+            }
+            // 2.按变更顺序更新GEO：类型或分片变化、删除时从旧的分片中移除，新增或修改时写入新的坐标
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (ShopChange change : batch) {
+                    String member = change.id.toString();
+                    String oldKey = change.oldTypeId == null ? null : shopGeoKey(change.oldTypeId, change.oldX, change.oldY);
+                    String newKey = change.typeId == null ? null : shopGeoKey(change.typeId, change.x, change.y);
+                    if (oldKey != null && !oldKey.equals(newKey)) {
+                        stringConnection.zRem(oldKey, member);
+                    }
+                    if (newKey != null) {
+                        stringConnection.geoAdd(newKey,
+                                new RedisGeoCommands.GeoLocation<>(member,
+                                        new Point(change.x, change.y)));
+                    }
+                }
+                return null;
+            });
+            // 3.同步各节点的本地空间索引
+            for (ShopChange change : batch) {
+                if (change.typeId == null) {
+                    shopGeoIndex.remove(change.id);
+                } else {
+                    shopGeoIndex.upsert(change.id, change.typeId, change.x, change.y);
+                }
+            }
+            // 4.直接写入数据库的商铺也加入布隆过滤器
+            batch.stream().filter(change -> change.inserted).forEach(change -> idBloomFilters.add(IdBloomFilters.SHOP, change.id));
+            evictCount.addAndGet(keys.size());
+        } catch (Exception e) {
+            // 下次重试
+            log.error("binlog变更写入Redis失败, 变更数: {}", batch.size(), e);
+            failed = batch;
+            if (typeChanged) {
+                shopTypeChanged.set(true);
+            }
+            return;
+        }
+        // 5.保存binlog位置
+        if (filename != null && position > 0) {
+            Map<String, String> saved = new HashMap<>(2);
+            saved.put("filename", filename);
+            saved.put("position", String.valueOf(position));
+            stringRedisTemplate.opsForHash().putAll(CDC_BINLOG_POSITION_KEY, saved);
+        }
+    }
+
+    /**
+     * 订阅状态
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("connected", client != null && client.isConnected());
+        stats.put("binlogFilename", binlogFilename);
+        stats.put("binlogPosition", binlogPosition);
+        stats.put("events", eventCount.get());
+        stats.put("evicted", evictCount.get());
+        stats.put("pending", changes.size());
+        return stats;
+    }
+
+    private static class ShopChange {
+        private Long id;
+        private Long oldTypeId;
+        private double oldX;
+        private double oldY;
+        private Long typeId;
+        private double x;
+        private double y;
+        private boolean inserted;
+    }
+}
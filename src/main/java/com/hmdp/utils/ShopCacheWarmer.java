@@ -0,0 +1,225 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时预热商铺缓存
+ * 流式读取 tb_shop，按批通过管道写入 cache:shop:{id} 并补全GEO分片 shop:geo:{typeId}:{row}:{col}，
+ * 同时统计各分片的商铺数量，超过 shard-max-size 时告警。
+ * 预热读取的是快照，只补全缺失的缓存和坐标（SET NX、GEOPOS不存在才GEOADD），不会覆盖启动后写入的更新的数据。
+ * 作为ApplicationRunner运行：加载到 ready-fraction 比例的商铺之前应用不会发布就绪事件，剩余部分在后台继续。
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每批管道写入的商铺数量
+     */
+    @Value("${hmdp.warmup.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 加载到该比例后应用才就绪
+     */
+    @Value("${hmdp.warmup.ready-fraction:0.8}")
+    private double readyFraction;
+
+    /**
+     * 等待就绪的最长时间(毫秒)，超时后不再阻塞启动
+     */
+    @Value("${hmdp.warmup.max-wait:60000}")
+    private long maxWait;
+
+    /**
+     * 单个GEO分片的商铺数量上限，超过时应减小分片边长
+     */
+    @Value("${hmdp.geo.shard-max-size:50000}")
+    private long shardMaxSize;
+
+    private volatile String state = "NOT_STARTED";
+
+    private volatile long total;
+
+    private final AtomicLong loaded = new AtomicLong();
+
+    /**
+     * GEO分片key -> 商铺数量
+     */
+    private final Map<String, Long> shardSizes = new ConcurrentHashMap<>();
+
+    private volatile long beginNanos;
+
+    private volatile long endNanos;
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            state = "DISABLED";
+            return;
+        }
+        beginNanos = System.nanoTime();
+        state = "RUNNING";
+        // 后台流式加载商铺，达到就绪比例时放行启动
+        total = shopMapper.selectCount(null);
+        long readyCount = (long) Math.ceil(total * readyFraction);
+        CountDownLatch ready = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                warmShops(readyCount, ready);
+                state = "DONE";
+                checkShardSizes();
+            } catch (Exception e) {
+                state = "FAILED";
+                log.error("商铺缓存预热失败", e);
+            } finally {
+                endNanos = System.nanoTime();
+                ready.countDown();
+                log.info("商铺缓存预热结束: {}", stats());
+            }
+        }, "shop-cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        if (!ready.await(maxWait, TimeUnit.MILLISECONDS)) {
+            log.warn("商铺缓存预热{}ms内未达到就绪比例，继续启动, 已加载: {}/{}", maxWait, loaded.get(), total);
+        }
+    }
+
+    private void warmShops(long readyCount, CountDownLatch ready) {
+        if (readyCount <= 0) {
+            ready.countDown();
+        }
+        TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        readOnlyTransaction.execute(status -> {
+            try (Cursor<Shop> cursor = shopMapper.streamAll()) {
+                List<Shop> batch = new ArrayList<>(batchSize);
+                for (Shop shop : cursor) {
+                    batch.add(shop);
+                    if (batch.size() >= batchSize) {
+                        writeBatch(batch, readyCount, ready);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    writeBatch(batch, readyCount, ready);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+
+    private void writeBatch(List<Shop> batch, long readyCount, CountDownLatch ready) {
+        // 1.写入商铺缓存
+        Map<String, Shop> values = new HashMap<>(batch.size() * 4 / 3 + 1);
+        for (Shop shop : batch) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        cacheClient.setBatchIfAbsent(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 2.查询分片中是否已有坐标
+        List<String> keys = new ArrayList<>(batch.size());
+        for (Shop shop : batch) {
+            keys.add(shopGeoKey(shop.getTypeId(), shop.getX(), shop.getY()));
+        }
+        List<Object> positions = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < batch.size(); i++) {
+                stringConnection.geoPos(keys.get(i), batch.get(i).getId().toString());
+            }
+            return null;
+        });
+        // 3.只写入缺失的坐标
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < batch.size(); i++) {
+                Shop shop = batch.get(i);
+                String key = keys.get(i);
+                shardSizes.merge(key, 1L, Long::sum);
+                if (hasPosition(positions.get(i))) {
+                    continue;
+                }
+                stringConnection.geoAdd(key, new RedisGeoCommands.GeoLocation<>(
+                        shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+            }
+            return null;
+        });
+        if (loaded.addAndGet(batch.size()) >= readyCount) {
+            ready.countDown();
+        }
+    }
+
+    private static boolean hasPosition(Object result) {
+        if (!(result instanceof List)) {
+            return false;
+        }
+        List<?> points = (List<?>) result;
+        return !points.isEmpty() && points.get(0) != null;
+    }
+
+    private void checkShardSizes() {
+        shardSizes.forEach((key, size) -> {
+            if (size > shardMaxSize) {
+                log.warn("GEO分片 {} 的商铺数量 {} 超过上限 {}，应减小分片边长", key, size, shardMaxSize);
+            }
+        });
+    }
+
+    /**
+     * 预热进度：加载数量、耗时、速率、GEO分片大小
+     */
+    public Map<String, Object> stats() {
+        long end = endNanos > 0 ? endNanos : System.nanoTime();
+        long elapsedMs = beginNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(end - beginNanos);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("status", state);
+        stats.put("total", total);
+        stats.put("loaded", loaded.get());
+        stats.put("elapsedMs", elapsedMs);
+        stats.put("rowsPerSec", elapsedMs == 0 ? 0 : loaded.get() * 1000 / elapsedMs);
+        stats.put("geoShards", shardSizes.size());
+        stats.put("largestGeoShard", shardSizes.values().stream().mapToLong(Long::longValue).max().orElse(0));
+        return stats;
+    }
+}
@@ -0,0 +1,316 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 一个商铺类型的网格空间索引，不可修改
+ * 按经纬度把坐标划分为边长 cellDegrees 的网格，商铺按网格编号排序后存放在基本类型数组中；
+ * 查询时从所在网格开始逐圈向外扫描，用大小为limit的最大堆保留最近的商铺，剩余的圈不可能更近时提前结束。
+ * 距离使用与Redis GEO相同的地球半径和haversine公式计算，单位为米。
+ * 本类只负责查询，加载和增量更新由 {@link ShopGeoIndex} 完成。
+ */
+public class ShopGeoGrid {
+
+    /**
+     * 与Redis GEO一致的地球半径(米)
+     */
+    private static final double EARTH_RADIUS = 6372797.560856;
+
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    private final double cellDegrees;
+
+    /**
+     * 非空网格的编号，升序
+     */
+    private final long[] cellKeys;
+
+    /**
+     * 第i个网格的商铺在数组中的范围为 [cellStarts[i], cellStarts[i + 1])
+     */
+    private final int[] cellStarts;
+
+    private final long[] ids;
+    private final double[] xs;
+    private final double[] ys;
+
+    /**
+     * 非空网格的行列范围，不限半径查询时用来确定扫描的圈数
+     */
+    private final int minRow, maxRow, minCol, maxCol;
+
+    /**
+     * @param size 前size个元素有效
+     */
+    public ShopGeoGrid(long[] ids, double[] xs, double[] ys, int size, double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        // 1.按网格编号排序
+        long[] keys = new long[size];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = cellKey(row(ys[i]), col(xs[i]));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        this.ids = new long[size];
+        this.xs = new double[size];
+        this.ys = new double[size];
+        int cells = 0;
+        long[] cellKeys = new long[size];
+        int[] cellStarts = new int[size + 1];
+        int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE, minCol = Integer.MAX_VALUE, maxCol = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            int from = order[i];
+            this.ids[i] = ids[from];
+            this.xs[i] = xs[from];
+            this.ys[i] = ys[from];
+            if (cells == 0 || cellKeys[cells - 1] != keys[from]) {
+                cellKeys[cells] = keys[from];
+                cellStarts[cells] = i;
+                cells++;
+            }
+            minRow = Math.min(minRow, row(ys[from]));
+            maxRow = Math.max(maxRow, row(ys[from]));
+            minCol = Math.min(minCol, col(xs[from]));
+            maxCol = Math.max(maxCol, col(xs[from]));
+        }
+        cellStarts[cells] = size;
+        this.cellKeys = Arrays.copyOf(cellKeys, cells);
+        this.cellStarts = Arrays.copyOf(cellStarts, cells + 1);
+        this.minRow = minRow;
+        this.maxRow = maxRow;
+        this.minCol = minCol;
+        this.maxCol = maxCol;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * 查询附近的商铺，按(距离, id)升序
+     * @param radius 半径(米)，小于等于0表示不限
+     * @param afterDistance 游标：只返回(距离, id)大于(afterDistance, afterId)的商铺，为null表示从头开始
+     * @param limit 最多返回的数量
+     */
+    public List<Hit> nearby(double x, double y, double radius, Double afterDistance, long afterId, int limit) {
+        if (ids.length == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int centerRow = row(y);
+        int centerCol = col(x);
+        // 1.确定扫描的圈数
+        int maxRing;
+        if (radius > 0) {
+            double latDegrees = radius / METERS_PER_DEGREE;
+            double lonDegrees = latDegrees / Math.max(0.01, Math.cos(Math.toRadians(Math.min(89.9, Math.abs(y) + latDegrees))));
+            maxRing = (int) Math.ceil(Math.max(latDegrees, lonDegrees) / cellDegrees) + 1;
+        } else {
+            maxRing = Math.max(Math.max(centerRow - minRow, maxRow - centerRow),
+                    Math.max(centerCol - minCol, maxCol - centerCol));
+        }
+        maxRing = Math.max(0, maxRing);
+        // 第k圈的网格距离查询点至少 (k-1) 个网格宽，经度方向按扫描范围内最高纬度估算
+        double farthestLat = Math.min(89.9, Math.abs(y) + (maxRing + 1) * cellDegrees);
+        double ringMeters = cellDegrees * METERS_PER_DEGREE * Math.cos(Math.toRadians(farthestLat));
+        // 第k圈的网格距离查询点至多 (k+1)·√2 个网格宽，全部比游标近的圈可以跳过
+        double ringMaxMeters = cellDegrees * METERS_PER_DEGREE * Math.sqrt(2);
+
+        // 2.逐圈扫描
+        Heap heap = new Heap(limit);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            if (heap.isFull() && (ring - 1) * ringMeters > heap.maxDistance()) {
+                break;
+            }
+            if (afterDistance != null && (ring + 1) * ringMaxMeters < afterDistance) {
+                continue;
+            }
+            if (ring == 0) {
+                scanCell(centerRow, centerCol, x, y, radius, afterDistance, afterId, heap);
+                continue;
+            }
+            for (int i = -ring; i <= ring; i++) {
+                scanCell(centerRow - ring, centerCol + i, x, y, radius, afterDistance, afterId, heap);
+                scanCell(centerRow + ring, centerCol + i, x, y, radius, afterDistance, afterId, heap);
+            }
+            for (int i = -ring + 1; i <= ring - 1; i++) {
+                scanCell(centerRow + i, centerCol - ring, x, y, radius, afterDistance, afterId, heap);
+                scanCell(centerRow + i, centerCol + ring, x, y, radius, afterDistance, afterId, heap);
+            }
+        }
+        return heap.toSortedList();
+    }
+
+    private void scanCell(int row, int col, double x, double y, double radius,
+                          Double afterDistance, long afterId, Heap heap) {
+        int cell = Arrays.binarySearch(cellKeys, cellKey(row, col));
+        if (cell < 0) {
+            return;
+        }
+        for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+            double distance = distance(x, y, xs[i], ys[i]);
+            if (radius > 0 && distance > radius) {
+                continue;
+            }
+            if (afterDistance != null && (distance < afterDistance || (distance == afterDistance && ids[i] <= afterId))) {
+                continue;
+            }
+            heap.offer(ids[i], distance);
+        }
+    }
+
+    private int row(double y) {
+        return (int) Math.floor(y / cellDegrees);
+    }
+
+    private int col(double x) {
+        return (int) Math.floor(x / cellDegrees);
+    }
+
+    private static long cellKey(int row, int col) {
+        return ((long) row << 32) | (col & 0xFFFFFFFFL);
+    }
+
+    /**
+     * haversine距离(米)，与Redis GEO的计算方式一致
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    /**
+     * 合并多个已按(距离, id)升序排列的结果，返回最近的limit个
+     * 用大小为列表个数的最小堆做k路归并，取够limit个即停止，不需要对全部结果排序
+     */
+    public static List<Hit> merge(List<List<Hit>> sorted, int limit) {
+        if (sorted.size() == 1) {
+            List<Hit> only = sorted.get(0);
+            return only.size() <= limit ? only : only.subList(0, limit);
+        }
+        // 堆中保存列表的下标，按各列表当前位置的元素比较
+        int[] positions = new int[sorted.size()];
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(1, sorted.size()), (a, b) -> {
+            Hit x = sorted.get(a).get(positions[a]);
+            Hit y = sorted.get(b).get(positions[b]);
+            return Heap.less(x.id, x.distance, y.id, y.distance) ? -1 : (x.id == y.id && x.distance == y.distance ? 0 : 1);
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!sorted.get(i).isEmpty()) {
+                heap.add(i);
+            }
+        }
+        List<Hit> merged = new ArrayList<>(limit);
+        while (merged.size() < limit && !heap.isEmpty()) {
+            int i = heap.poll();
+            merged.add(sorted.get(i).get(positions[i]++));
+            if (positions[i] < sorted.get(i).size()) {
+                heap.add(i);
+            }
+        }
+        return merged;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Hit {
+        private final long id;
+        private final double distance;
+    }
+
+    /**
+     * 按(距离, id)比较的最大堆，容量固定，保留最小的capacity个元素
+     */
+    private static class Heap {
+        private final long[] ids;
+        private final double[] distances;
+        private int size;
+
+        private Heap(int capacity) {
+            this.ids = new long[capacity];
+            this.distances = new double[capacity];
+        }
+
+        private boolean isFull() {
+            return size == ids.length;
+        }
+
+        private double maxDistance() {
+            return distances[0];
+        }
+
+        private void offer(long id, double distance) {
+            if (size < ids.length) {
+                ids[size] = id;
+                distances[size] = distance;
+                siftUp(size++);
+            } else if (less(id, distance, ids[0], distances[0])) {
+                ids[0] = id;
+                distances[0] = distance;
+                siftDown(0);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(ids[parent], distances[parent], ids[i], distances[i])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) {
+                    break;
+                }
+                int largest = left;
+                int right = left + 1;
+                if (right < size && less(ids[left], distances[left], ids[right], distances[right])) {
+                    largest = right;
+                }
+                if (!less(ids[i], distances[i], ids[largest], distances[largest])) {
+                    break;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long id = ids[a];
+            ids[a] = ids[b];
+            ids[b] = id;
+            double distance = distances[a];
+            distances[a] = distances[b];
+            distances[b] = distance;
+        }
+
+        private static boolean less(long id1, double d1, long id2, double d2) {
+            return d1 < d2 || (d1 == d2 && id1 < id2);
+        }
+
+        private List<Hit> toSortedList() {
+            List<Hit> hits = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                hits.add(new Hit(ids[i], distances[i]));
+            }
+            hits.sort((a, b) -> less(a.id, a.distance, b.id, b.distance) ? -1 : (a.id == b.id ? 0 : 1));
+            return hits;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_SYNC_CHANNEL;
+
+/**
+ * 本地商铺空间索引
+ * 每个节点在内存中为每个商铺类型维护一个 {@link ShopGeoGrid}，附近商铺查询不再访问Redis GEO，深分页也不需要重新拉取前面的结果。
+ * 启动时流式读取 tb_shop 构建，之后定期全量重建兜底；商铺新增、修改、删除时调用 {@link #upsert}/{@link #remove}，
+ * 变更通过 {@link RedisConstants#SHOP_GEO_SYNC_CHANNEL} 通知所有节点。变更后对应类型的网格在后台线程重建，
+ * 重建完成前查询继续使用旧的网格，不会在请求线程上重建。
+ * 索引没有准备好时 {@link #isReady()} 返回false，调用方应回退到Redis GEO。
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${hmdp.geo.index.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 网格边长(度)，0.01度约1公里
+     */
+    @Value("${hmdp.geo.index.cell-degrees:0.01}")
+    private double cellDegrees;
+
+    private volatile State state;
+
+    /**
+     * 全量重建期间的变更同时写入正在构建的状态，重建完成后不会丢失
+     */
+    private volatile State building;
+
+    /**
+     * 在后台重建有变更的网格
+     */
+    private final ExecutorService gridExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "shop-geo-grid");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(SHOP_GEO_SYNC_CHANNEL));
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.error("商铺空间索引初始化失败，使用Redis GEO", e);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        gridExecutor.shutdownNow();
+    }
+
+    /**
+     * 定期全量重建，修正丢失的变更通知
+     */
+    @Scheduled(fixedDelayString = "${hmdp.geo.index.rebuild-interval:600000}",
+            initialDelayString = "${hmdp.geo.index.rebuild-interval:600000}")
+    public void scheduledRebuild() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.error("重建商铺空间索引失败", e);
+        }
+    }
+
+    private synchronized void rebuild() {
+        long begin = System.currentTimeMillis();
+        State target = new State();
+        building = target;
+        TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        try {
+            readOnlyTransaction.execute(status -> {
+                try (Cursor<Shop> cursor = shopMapper.streamLocations()) {
+                    for (Shop shop : cursor) {
+                        target.apply(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            // 切换前构建好所有网格，查询不需要等待
+            target.buildAll(cellDegrees);
+        } finally {
+            building = null;
+        }
+        state = target;
+        log.info("重建商铺空间索引, 商铺数: {}, 耗时: {}ms", target.typeOf.size(), System.currentTimeMillis() - begin);
+    }
+
+    public boolean isReady() {
+        return state != null;
+    }
+
+    /**
+     * 查询某个类型附近的商铺，按(距离, id)升序
+     * @see ShopGeoGrid#nearby
+     */
+    public List<ShopGeoGrid.Hit> nearby(Long typeId, double x, double y, double radius,
+                                        Double afterDistance, long afterId, int limit) {
+        State current = state;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        ShopGeoGrid grid = current.grid(typeId, cellDegrees, gridExecutor);
+        return grid == null ? Collections.emptyList() : grid.nearby(x, y, radius, afterDistance, afterId, limit);
+    }
+
+    /**
+     * 商铺新增或修改坐标、类型后调用，并通知其他节点
+     */
+    public void upsert(Long id, Long typeId, double x, double y) {
+        if (!enabled) {
+            return;
+        }
+        applyLocal(id, typeId, x, y);
+        stringRedisTemplate.convertAndSend(SHOP_GEO_SYNC_CHANNEL, id + "," + typeId + "," + x + "," + y);
+    }
+
+    /**
+     * 商铺删除后调用，并通知其他节点
+     */
+    public void remove(Long id) {
+        if (!enabled) {
+            return;
+        }
+        applyLocal(id, null, 0, 0);
+        stringRedisTemplate.convertAndSend(SHOP_GEO_SYNC_CHANNEL, id.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            List<String> parts = StrUtil.split(body, ',');
+            if (parts.size() == 1) {
+                applyLocal(Long.valueOf(parts.get(0)), null, 0, 0);
+            } else {
+                applyLocal(Long.valueOf(parts.get(0)), Long.valueOf(parts.get(1)),
+                        Double.parseDouble(parts.get(2)), Double.parseDouble(parts.get(3)));
+            }
+        } catch (RuntimeException e) {
+            log.error("无法解析的商铺坐标消息: {}", body);
+        }
+    }
+
+    private void applyLocal(Long id, Long typeId, double x, double y) {
+        State current = state;
+        if (current != null) {
+            current.apply(id, typeId, x, y);
+        }
+        State target = building;
+        if (target != null) {
+            target.apply(id, typeId, x, y);
+        }
+    }
+
+    /**
+     * 全部商铺的坐标，以及按类型构建好的网格
+     */
+    private static class State {
+        /**
+         * typeId -> (shopId -> {x, y})
+         */
+        private final Map<Long, Map<Long, double[]>> points = new ConcurrentHashMap<>();
+        private final Map<Long, Long> typeOf = new ConcurrentHashMap<>();
+        private final Map<Long, ShopGeoGrid> grids = new ConcurrentHashMap<>();
+        /**
+         * 有变更、需要重建网格的类型
+         */
+        private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+        /**
+         * 已提交后台重建、尚未完成的类型
+         */
+        private final Set<Long> rebuilding = ConcurrentHashMap.newKeySet();
+
+        /**
+         * @param typeId 为null表示删除
+         */
+        private void apply(Long id, Long typeId, double x, double y) {
+            Long oldTypeId = typeId == null ? typeOf.remove(id) : typeOf.put(id, typeId);
+            if (oldTypeId != null && !oldTypeId.equals(typeId)) {
+                Map<Long, double[]> old = points.get(oldTypeId);
+                if (old != null) {
+                    old.remove(id);
+                }
+                dirty.add(oldTypeId);
+            }
+            if (typeId != null) {
+                points.computeIfAbsent(typeId, k -> new ConcurrentHashMap<>()).put(id, new double[]{x, y});
+                dirty.add(typeId);
+            }
+        }
+
+        /**
+         * 有变更的类型提交到后台重建，返回当前的网格；还没有网格的新类型同步构建
+         */
+        private ShopGeoGrid grid(Long typeId, double cellDegrees, Executor executor) {
+            ShopGeoGrid grid = grids.get(typeId);
+            if (!dirty.contains(typeId)) {
+                return grid;
+            }
+            if (grid == null) {
+                return buildGrid(typeId, cellDegrees);
+            }
+            if (rebuilding.add(typeId)) {
+                try {
+                    executor.execute(() -> {
+                        try {
+                            buildGrid(typeId, cellDegrees);
+                        } finally {
+                            rebuilding.remove(typeId);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    rebuilding.remove(typeId);
+                }
+            }
+            return grid;
+        }
+
+        private void buildAll(double cellDegrees) {
+            for (Long typeId : points.keySet()) {
+                buildGrid(typeId, cellDegrees);
+            }
+        }
+
+        /**
+         * 同一时间只有一个线程重建，先清除标记再读取坐标，重建期间的新变更会再次标记
+         */
+        private synchronized ShopGeoGrid buildGrid(Long typeId, double cellDegrees) {
+            if (dirty.remove(typeId)) {
+                Map<Long, double[]> shops = points.getOrDefault(typeId, Collections.emptyMap());
+                int size = shops.size();
+                long[] ids = new long[size];
+                double[] xs = new double[size];
+                double[] ys = new double[size];
+                int n = 0;
+                for (Map.Entry<Long, double[]> entry : shops.entrySet()) {
+                    if (n == size) {
+                        break;
+                    }
+                    ids[n] = entry.getKey();
+                    xs[n] = entry.getValue()[0];
+                    ys[n] = entry.getValue()[1];
+                    n++;
+                }
+                grids.put(typeId, new ShopGeoGrid(ids, xs, ys, n, cellDegrees));
+            }
+            return grids.get(typeId);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_SESSION_KEY;
+
+/**
+ * 附近商铺查询会话
+ * 第一次查询时把按距离排好序的 (shopId, distance) 编码为定长的字节数组（每条16字节：long id + double distance），
+ * 写入 shop:geo:session:{token} 并设置较短的有效期；之后的每一页用 GETRANGE 只读取该页对应的字节，
+ * 不再重新计算附近的商铺，翻页期间用户移动或商铺变化也不会导致重复、遗漏。
+ */
+@Component
+public class ShopGeoSession {
+
+    private static final int ENTRY_BYTES = Long.BYTES + Double.BYTES;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 快照的有效期(秒)，过期后需要重新查询
+     */
+    @Value("${hmdp.geo.session.ttl:300}")
+    private long ttl;
+
+    /**
+     * 快照最多保存的商铺数量
+     */
+    @Value("${hmdp.geo.session.max-size:400}")
+    private int maxSize;
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 保存快照
+     * @return 会话token
+     */
+    public String create(List<ShopGeoGrid.Hit> hits) {
+        String token = UUID.randomUUID().toString(true);
+        byte[] key = key(token);
+        byte[] value = encode(hits, maxSize);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(key, value, Expiration.from(ttl, TimeUnit.SECONDS), RedisStringCommands.SetOption.upsert()));
+        return token;
+    }
+
+    /**
+     * 读取快照中 [offset, offset + count) 的部分
+     * @return 会话不存在或已过期时返回null
+     */
+    public List<ShopGeoGrid.Hit> slice(String token, int offset, int count) {
+        byte[] key = key(token);
+        long start = (long) offset * ENTRY_BYTES;
+        long end = start + (long) count * ENTRY_BYTES - 1;
+        // GETRANGE 对不存在的key和超出长度的范围都返回空，用 STRLEN 区分会话过期；结果不经过序列化器，保持原始字节
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.strLen(key);
+            connection.getRange(key, start, end);
+            return null;
+        }, null);
+        Long length = (Long) results.get(0);
+        if (length == null || length == 0) {
+            return null;
+        }
+        return decode((byte[]) results.get(1));
+    }
+
+    /**
+     * 生成下一页的游标，格式为 "token:offset"
+     */
+    public String cursor(String token, int offset) {
+        return token + ":" + offset;
+    }
+
+    /**
+     * 解析游标
+     * @return 格式错误或offset不在快照范围 [0, max-size) 内时返回null
+     */
+    public Position parseCursor(String cursor) {
+        int split = cursor.lastIndexOf(':');
+        if (split <= 0) {
+            return null;
+        }
+        int offset;
+        try {
+            offset = Integer.parseInt(cursor.substring(split + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        // 负数会让GETRANGE从末尾读取，超过max-size的位置不可能有数据
+        if (offset < 0 || offset >= maxSize) {
+            return null;
+        }
+        return new Position(cursor.substring(0, split), offset);
+    }
+
+    /**
+     * 把前maxSize个结果编码为定长字节数组
+     */
+    static byte[] encode(List<ShopGeoGrid.Hit> hits, int maxSize) {
+        int size = Math.min(hits.size(), maxSize);
+        ByteBuffer buffer = ByteBuffer.allocate(size * ENTRY_BYTES);
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(hits.get(i).getId());
+            buffer.putDouble(hits.get(i).getDistance());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 解码GETRANGE读取的字节，末尾不足一条的部分忽略
+     */
+    static List<ShopGeoGrid.Hit> decode(byte[] bytes) {
+        if (bytes == null || bytes.length < ENTRY_BYTES) {
+            return Collections.emptyList();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        List<ShopGeoGrid.Hit> hits = new ArrayList<>(bytes.length / ENTRY_BYTES);
+        while (buffer.remaining() >= ENTRY_BYTES) {
+            hits.add(new ShopGeoGrid.Hit(buffer.getLong(), buffer.getDouble()));
+        }
+        return hits;
+    }
+
+    /**
+     * 游标指向的会话和位置
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Position {
+        private final String token;
+        private final int offset;
+    }
+
+    private static byte[] key(String token) {
+        return (SHOP_GEO_SESSION_KEY + token).getBytes(StandardCharsets.UTF_8);
+    }
+}
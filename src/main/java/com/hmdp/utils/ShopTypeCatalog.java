@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopTypeMapper;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_VERSION_KEY;
+
+/**
+ * 商铺类型目录
+ * 类型表很小且很少变化，整张表以不可变快照保存在本地，并预先序列化好接口返回的JSON，查询时不访问Redis和数据库。
+ * 修改类型后调用 {@link #bump()} 递增Redis中的版本号，各节点定时比较版本号，发现变化后重新加载；
+ * 直接修改数据库且没有开启binlog同步时不会递增版本号，因此每隔 full-reload-interval 无条件重新加载一次兜底。
+ */
+@Slf4j
+@Component
+public class ShopTypeCatalog {
+
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 无条件重新加载的间隔(毫秒)
+     */
+    @Value("${hmdp.shop-type.full-reload-interval:300000}")
+    private long fullReloadInterval;
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+    @PostConstruct
+    public void init() {
+        reload(currentVersion());
+    }
+
+    /**
+     * 比较Redis中的版本号，变化后或距离上次加载超过 full-reload-interval 时重新加载
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop-type.refresh-interval:1000}")
+    public void refresh() {
+        try {
+            long version = currentVersion();
+            Snapshot current = snapshot.get();
+            if (version != current.version || System.currentTimeMillis() - current.loadedAt >= fullReloadInterval) {
+                reload(version);
+            }
+        } catch (Exception e) {
+            log.error("刷新商铺类型失败，继续使用版本: {}", snapshot.get().version, e);
+        }
+    }
+
+    /**
+     * 类型表修改后调用，递增版本号并立即重新加载本节点
+     */
+    public void bump() {
+        Long version = stringRedisTemplate.opsForValue().increment(SHOP_TYPE_VERSION_KEY);
+        reload(version == null ? 0 : version);
+    }
+
+    /**
+     * 按sort排序的全部类型，不可修改
+     */
+    public List<ShopType> types() {
+        return snapshot.get().types;
+    }
+
+    /**
+     * 序列化好的 Result.ok(types)
+     */
+    public byte[] jsonBytes() {
+        return snapshot.get().json;
+    }
+
+    public long version() {
+        return snapshot.get().version;
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    /**
+     * 先读取版本号再查询数据库，查询期间版本号变化时下次刷新会再次加载
+     */
+    private void reload(long version) {
+        List<ShopType> types = shopTypeMapper.selectList(new QueryWrapper<ShopType>().orderByAsc("sort"));
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化商铺类型失败", e);
+        }
+        Snapshot previous = snapshot.getAndSet(new Snapshot(version, Collections.unmodifiableList(types), json));
+        if (previous == null || previous.version != version || !Arrays.equals(previous.json, json)) {
+            log.info("加载商铺类型, 版本: {}, 数量: {}", version, types.size());
+        }
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final List<ShopType> types;
+        private final byte[] json;
+        private final long loadedAt;
+
+        private Snapshot(long version, List<ShopType> types, byte[] json) {
+            this.version = version;
+            this.types = types;
+            this.json = json;
+            this.loadedAt = System.currentTimeMillis();
+        }
+    }
+}
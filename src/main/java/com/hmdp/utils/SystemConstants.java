@@ -4,5 +4,8 @@ public class SystemConstants {
     public static final String IMAGE_UPLOAD_DIR = "D:\\develop\\nginx-1.18.0-hmdp\\html\\hmdp\\imgs\\";
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 8;
+    public static final double SHOP_NEARBY_RADIUS = 5000;
+    public static final int SHOP_NEARBY_MAX_LIMIT = 50;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int MAX_SECKILL_ITEMS = 10;
 }
@@ -5,16 +5,33 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.库存同步频道
+local stockChannel = ARGV[4]
+-- 1.5.秒杀开始、结束时间(毫秒)，0表示不限制
+local beginTime = tonumber(ARGV[5] or '0')
+local endTime = tonumber(ARGV[6] or '0')
 
--- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.数据key，使用 {voucherId} 作为hash tag，保证两个key在Redis Cluster的同一个slot
+-- 2.1.库存key seckill:stock:{voucherId}
+local stockKey = KEYS[1]
+-- 2.2.订单key seckill:order:{voucherId}
+local orderKey = KEYS[2]
 
 -- 3.脚本业务
+-- 3.0.校验秒杀时间窗口，以Redis服务器时间为准，避免各节点时钟不一致
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(beginTime > 0 and now < beginTime) then
+    -- 秒杀尚未开始，返回4
+    return 4
+end
+if(endTime > 0 and now > endTime) then
+    -- 秒杀已经结束，返回5
+    return 5
+end
 -- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
@@ -24,7 +41,11 @@ if(redis.call('sismember', orderKey, userId) == 1) then
     return 2
 end
 -- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
+local stock = redis.call('incrby', stockKey, -1)
+-- 3.5.库存归零，通知所有节点本地标记售罄
+if(stock == 0) then
+    redis.call('publish', stockChannel, voucherId .. ':0')
+end
+-- 3.6.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
 return 0
@@ -0,0 +1,36 @@
+-- 分桶秒杀：在用户的主桶上校验一人一单并扣减库存
+-- 返回：0-成功，2-重复下单，3-主桶库存不足（用户已在主桶占位，需要到其他桶扣减），4-秒杀尚未开始，5-秒杀已经结束
+
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.秒杀开始、结束时间(毫秒)，0表示不限制
+local beginTime = tonumber(ARGV[2] or '0')
+local endTime = tonumber(ARGV[3] or '0')
+-- 1.3.主桶库存key seckill:stock:{voucherId:bucket}
+local stockKey = KEYS[1]
+-- 1.4.主桶订单key seckill:order:{voucherId:bucket}
+local orderKey = KEYS[2]
+
+-- 2.校验秒杀时间窗口，以Redis服务器时间为准，避免各节点时钟不一致
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(beginTime > 0 and now < beginTime) then
+    return 4
+end
+if(endTime > 0 and now > endTime) then
+    return 5
+end
+-- 3.判断用户是否下单，主桶是该用户下单记录的唯一位置，保证跨桶的一人一单
+if(redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+-- 4.先占位，防止同一用户并发地到其他桶扣减
+redis.call('sadd', orderKey, userId)
+-- 5.主桶有库存直接扣减
+if(tonumber(redis.call('get', stockKey) or '0') > 0) then
+    redis.call('incrby', stockKey, -1)
+    return 0
+end
+return 3
@@ -0,0 +1,8 @@
+-- 分桶秒杀：主桶库存耗尽后到兄弟桶扣减一件库存
+-- 返回：0-成功，1-库存不足
+local stockKey = KEYS[1]
+if(tonumber(redis.call('get', stockKey) or '0') > 0) then
+    redis.call('incrby', stockKey, -1)
+    return 0
+end
+return 1
@@ -0,0 +1,19 @@
+-- 补偿：订单最终无法落库时回滚Redis中的预扣减，释放用户的下单资格
+-- 返回：-1-用户不在下单集合中（已经补偿过），否则返回回补后的库存
+
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.回补数量
+local quantity = tonumber(ARGV[2])
+-- 1.3.库存key，分桶时为用户主桶的库存key
+local stockKey = KEYS[1]
+-- 1.4.订单key，分桶时为用户主桶的订单key
+local orderKey = KEYS[2]
+
+-- 2.移除下单记录，移除失败说明已经补偿过，保证重复补偿不会多加库存
+if(redis.call('srem', orderKey, userId) == 0) then
+    return -1
+end
+-- 3.回补库存
+return redis.call('incrby', stockKey, quantity)
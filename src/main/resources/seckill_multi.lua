@@ -0,0 +1,72 @@
+-- 一次调用预定多张优惠券（每张可购买多件），返回每一项的状态
+-- 状态：0-成功，1-库存不足，2-重复下单，3-因其他项失败未执行（仅全部成功模式），4-秒杀尚未开始，5-秒杀已经结束
+
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.是否要求全部成功，'1'表示任意一项失败则整体不扣减
+local allOrNothing = ARGV[2] == '1'
+-- 1.3.库存同步频道
+local stockChannel = ARGV[3]
+-- 1.4.从ARGV[4]开始，每一项依次为 voucherId, quantity, 库存归零时是否广播售罄（分桶的券为'0'）,
+--     秒杀开始时间, 秒杀结束时间(毫秒，0表示不限制)
+-- 1.5.KEYS中每一项依次为库存key、订单key（分桶的券为用户主桶的key）
+local count = #KEYS / 2
+
+-- 2.校验每一项的购买资格
+-- 2.0.校验秒杀时间窗口，以Redis服务器时间为准，避免各节点时钟不一致
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local status = {}
+local failed = false
+for i = 1, count do
+    local stockKey = KEYS[2 * i - 1]
+    local orderKey = KEYS[2 * i]
+    local quantity = tonumber(ARGV[5 * i])
+    local beginTime = tonumber(ARGV[5 * i + 2])
+    local endTime = tonumber(ARGV[5 * i + 3])
+    if(beginTime > 0 and now < beginTime) then
+        -- 2.1.秒杀尚未开始
+        status[i] = 4
+    elseif(endTime > 0 and now > endTime) then
+        -- 2.2.秒杀已经结束
+        status[i] = 5
+    elseif(redis.call('sismember', orderKey, userId) == 1) then
+        -- 2.3.重复下单
+        status[i] = 2
+    elseif(tonumber(redis.call('get', stockKey) or '0') < quantity) then
+        -- 2.4.库存不足
+        status[i] = 1
+    else
+        status[i] = 0
+    end
+    if(status[i] ~= 0) then
+        failed = true
+    end
+end
+
+-- 3.全部成功模式下有失败项，整体不扣减
+if(allOrNothing and failed) then
+    for i = 1, count do
+        if(status[i] == 0) then
+            status[i] = 3
+        end
+    end
+    return status
+end
+
+-- 4.扣减通过校验的项
+for i = 1, count do
+    if(status[i] == 0) then
+        local voucherId = ARGV[5 * i - 1]
+        local quantity = tonumber(ARGV[5 * i])
+        local notify = ARGV[5 * i + 1] == '1'
+        local stock = redis.call('incrby', KEYS[2 * i - 1], -quantity)
+        if(notify and stock == 0) then
+            redis.call('publish', stockChannel, voucherId .. ':0')
+        end
+        redis.call('sadd', KEYS[2 * i], userId)
+    end
+end
+return status
@@ -93,22 +93,20 @@ public class HmDianPingApplicationTests {
         // 1.查询店铺信息
         List<Shop> shopList = shopService.list();
 
-        //2 以typeId为key，将shopList分组
-        Map<Long, List<Shop>> map = shopList
+        //2 以GEO分片key（typeId和坐标所在的分片）为key，将shopList分组
+        Map<String, List<Shop>> map = shopList
                 .stream()
-                .collect(Collectors.groupingBy(Shop::getTypeId));
+                .collect(Collectors.groupingBy(shop -> shopGeoKey(shop.getTypeId(), shop.getX(), shop.getY())));
 
         //3. 遍历map，将每个分组中的商户存入对应的GEO集合中
-        map.forEach((typeId, shopListOfType) -> {
-            //3.1 构建GEO集合的key
-            String key = SHOP_GEO_KEY + typeId;
-            //3.2 遍历店铺列表，将每个店铺的坐标信息存入GEO集合中
+        map.forEach((key, shopListOfType) -> {
+            //3.1 遍历店铺列表，将每个店铺的坐标信息存入GEO集合中
             List<RedisGeoCommands.GeoLocation<String>> locations = new ArrayList<>(shopListOfType.size());
             shopListOfType.forEach(shop -> {
-                //3.2.1 构建店铺的坐标信息
+                //3.1.1 构建店铺的坐标信息
                 locations.add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
             });
-            //3.2.2 将坐标信息存入GEO集合中
+            //3.1.2 将坐标信息存入GEO集合中
             stringRedisTemplate.opsForGeo().add(key, locations);
         });
     }
@@ -0,0 +1,87 @@
+package com.hmdp.bench;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheCodecs;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编码器基准测试：JSON、Kryo、Kryo+LZ4 编码/解码逻辑过期的商铺缓存
+ * 运行：先 mvn test-compile，再以测试classpath执行本类的main方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "kryo", "kryo-lz4"})
+    private String codec;
+
+    private CacheCodecs cacheCodecs;
+
+    private RedisData redisData;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        List<CacheCodec> codecs = Arrays.asList(new JsonCacheCodec(), new KryoCacheCodec());
+        // 阈值为1时所有值都压缩，便于观察压缩本身的开销
+        boolean compress = codec.endsWith("-lz4");
+        cacheCodecs = new CacheCodecs(codecs, compress ? "kryo" : codec, compress ? 1 : 0);
+
+        Shop shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+        redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        redisData.setDelta(15L);
+        encoded = cacheCodecs.encode(redisData);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return cacheCodecs.encode(redisData);
+    }
+
+    @Benchmark
+    public RedisData decode() {
+        return cacheCodecs.decodeLogical(encoded, Shop.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
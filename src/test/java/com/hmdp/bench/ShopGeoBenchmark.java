@@ -0,0 +1,159 @@
+package com.hmdp.bench;
+
+import com.hmdp.utils.ShopGeoGrid;
+import io.lettuce.core.GeoArgs;
+import io.lettuce.core.GeoSearch;
+import io.lettuce.core.GeoWithin;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 附近商铺查询基准测试：本地网格索引与Redis GEOSEARCH
+ * 每次查询取第page页（每页8条）；index按页码取前page*8条再截取，indexCursor用上一页最后一条作为游标只取8条。
+ * redis需要Redis 6.2以上，通过 -p redisUri=redis://host:port 指定，连接不上时只有redis基准失败。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShopGeoBenchmark {
+
+    private static final int PAGE_SIZE = 8;
+    private static final double RADIUS = 5000;
+    private static final String KEY = "bench:shop:geo";
+
+    @State(Scope.Benchmark)
+    public static class Shops {
+        @Param({"10000", "100000"})
+        int count;
+
+        @Param({"1", "50"})
+        int page;
+
+        long[] ids;
+        double[] xs;
+        double[] ys;
+        double[][] queries;
+
+        @Setup
+        public void setup() {
+            // 商铺均匀分布在约50km×50km的范围内
+            Random random = new Random(42);
+            ids = new long[count];
+            xs = new double[count];
+            ys = new double[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = i + 1;
+                xs[i] = 120.0 + random.nextDouble() * 0.5;
+                ys[i] = 30.0 + random.nextDouble() * 0.5;
+            }
+            queries = new double[256][];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = new double[]{120.1 + random.nextDouble() * 0.3, 30.1 + random.nextDouble() * 0.3};
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class IndexState {
+        ShopGeoGrid grid;
+        /**
+         * 每个查询点第page页之前最后一条的游标
+         */
+        double[] afterDistances;
+        long[] afterIds;
+
+        @Setup
+        public void setup(Shops shops) {
+            grid = new ShopGeoGrid(shops.ids, shops.xs, shops.ys, shops.count, 0.01);
+            afterDistances = new double[shops.queries.length];
+            afterIds = new long[shops.queries.length];
+            int skip = (shops.page - 1) * PAGE_SIZE;
+            for (int i = 0; i < shops.queries.length; i++) {
+                afterDistances[i] = -1;
+                if (skip > 0) {
+                    List<ShopGeoGrid.Hit> hits = grid.nearby(shops.queries[i][0], shops.queries[i][1], RADIUS, null, 0, skip);
+                    ShopGeoGrid.Hit last = hits.get(hits.size() - 1);
+                    afterDistances[i] = last.getDistance();
+                    afterIds[i] = last.getId();
+                }
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RedisState {
+        @Param("redis://localhost:6379")
+        String redisUri;
+
+        RedisClient client;
+        StatefulRedisConnection<String, String> connection;
+        RedisCommands<String, String> commands;
+
+        @Setup
+        public void setup(Shops shops) {
+            client = RedisClient.create(redisUri);
+            connection = client.connect();
+            commands = connection.sync();
+            commands.del(KEY);
+            for (int i = 0; i < shops.count; i++) {
+                commands.geoadd(KEY, shops.xs[i], shops.ys[i], String.valueOf(shops.ids[i]));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            commands.del(KEY);
+            connection.close();
+            client.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public List<ShopGeoGrid.Hit> index(Shops shops, IndexState state, Cursor cursor) {
+        double[] query = shops.queries[cursor.next++ & 255];
+        List<ShopGeoGrid.Hit> hits = state.grid.nearby(query[0], query[1], RADIUS, null, 0, shops.page * PAGE_SIZE);
+        return hits.subList(Math.min(hits.size(), (shops.page - 1) * PAGE_SIZE), hits.size());
+    }
+
+    @Benchmark
+    public List<ShopGeoGrid.Hit> indexCursor(Shops shops, IndexState state, Cursor cursor) {
+        int i = cursor.next++ & 255;
+        double[] query = shops.queries[i];
+        Double afterDistance = state.afterDistances[i] < 0 ? null : state.afterDistances[i];
+        return state.grid.nearby(query[0], query[1], RADIUS, afterDistance, state.afterIds[i], PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<GeoWithin<String>> redis(Shops shops, RedisState state, Cursor cursor) {
+        double[] query = shops.queries[cursor.next++ & 255];
+        List<GeoWithin<String>> results = state.commands.geosearch(KEY,
+                GeoSearch.fromCoordinates(query[0], query[1]),
+                GeoSearch.byRadius(RADIUS, GeoArgs.Unit.m),
+                GeoArgs.Builder.distance().withCount(shops.page * PAGE_SIZE).asc());
+        return results.subList(Math.min(results.size(), (shops.page - 1) * PAGE_SIZE), results.size());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ShopGeoBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
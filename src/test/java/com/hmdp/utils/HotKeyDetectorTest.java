@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * count-min sketch的估算误差和热点提升
+ */
+class HotKeyDetectorTest {
+
+    private HotKeyDetector detector;
+
+    @AfterEach
+    void tearDown() {
+        if (detector != null) {
+            detector.destroy();
+        }
+    }
+
+    @Test
+    void sketchNeverUnderestimates() {
+        HotKeyDetector.CountMinSketch sketch = new HotKeyDetector.CountMinSketch(4, 1024);
+        Map<String, Integer> counts = new HashMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 50_000; i++) {
+            // 少数key访问量大，其余为长尾
+            String key = random.nextInt(10) < 3 ? "cache:shop:" + random.nextInt(5) : "cache:shop:" + random.nextInt(5000);
+            sketch.add(key);
+            counts.merge(key, 1, Integer::sum);
+        }
+        long totalError = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            long estimate = sketch.estimate(entry.getKey());
+            assertTrue(estimate >= entry.getValue(), "低估了 " + entry.getKey());
+            totalError += estimate - entry.getValue();
+        }
+        // 每行的期望误差为 总数/width，取最小值后的平均误差应远小于它
+        assertTrue(totalError / counts.size() < 50_000 / 1024, "平均误差过大: " + totalError / counts.size());
+    }
+
+    @Test
+    void heavyKeysAreEstimatedClosely() {
+        HotKeyDetector.CountMinSketch sketch = new HotKeyDetector.CountMinSketch(4, 4096);
+        for (int i = 0; i < 10_000; i++) {
+            sketch.add("cache:shop:1");
+            sketch.add("cache:shop:" + (i + 100));
+        }
+        long estimate = sketch.estimate("cache:shop:1");
+        assertTrue(estimate >= 10_000 && estimate <= 10_000 * 1.05, "估算值: " + estimate);
+        assertTrue(sketch.estimate("cache:shop:never") <= 10);
+    }
+
+    @Test
+    void clearResetsCounters() {
+        HotKeyDetector.CountMinSketch sketch = new HotKeyDetector.CountMinSketch(4, 64);
+        for (int i = 0; i < 100; i++) {
+            sketch.add("cache:shop:" + i);
+        }
+        sketch.clear();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, sketch.estimate("cache:shop:" + i));
+        }
+    }
+
+    @Test
+    void promotesKeyAboveThresholdAndBroadcasts() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        detector = detector(template);
+        // 窗口5秒、阈值100QPS：窗口内超过500次访问的key成为热点
+        for (int i = 0; i < 499; i++) {
+            assertFalse(detector.record("cache:shop:1"));
+        }
+        for (int i = 0; i < 10; i++) {
+            detector.record("cache:shop:2");
+        }
+        assertTrue(detector.record("cache:shop:1"));
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:2"));
+        verify(template, times(1)).convertAndSend(eq(RedisConstants.CACHE_HOTKEY_CHANNEL), eq("cache:shop:1"));
+
+        // 剩余有效期超过一半时不重复广播
+        detector.record("cache:shop:1");
+        verify(template, times(1)).convertAndSend(any(), any());
+    }
+
+    @Test
+    void disabledDetectorNeverPromotes() {
+        detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "enabled", false);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(detector.record("cache:shop:1"));
+        }
+    }
+
+    private static HotKeyDetector detector(StringRedisTemplate template) {
+        HotKeyDetector detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(detector, "listenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "sampleRate", 1.0);
+        ReflectionTestUtils.setField(detector, "qpsThreshold", 100.0);
+        ReflectionTestUtils.setField(detector, "windowSlots", 5);
+        // 轮转只清空最旧的槽，5个槽轮转一圈之前窗口内的计数都保留
+        ReflectionTestUtils.setField(detector, "slotMillis", 1000L);
+        ReflectionTestUtils.setField(detector, "depth", 4);
+        ReflectionTestUtils.setField(detector, "width", 4096);
+        ReflectionTestUtils.setField(detector, "topK", 20);
+        ReflectionTestUtils.setField(detector, "promoteTtl", 30_000L);
+        detector.init();
+        return detector;
+    }
+}
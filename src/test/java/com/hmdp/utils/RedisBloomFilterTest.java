@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 本地位数组与Redis bitmap的位编号一致：SETBIT key offset 1 设置第 offset/8 个字节中从最高位数起的第 offset%8 位
+ */
+class RedisBloomFilterTest {
+
+    @Test
+    void toBytesMatchesRedisSetbit() {
+        RedisBloomFilter filter = new RedisBloomFilter(1000, 0.01);
+        byte[] expected = new byte[(int) (filter.bitSize() / 8)];
+        AtomicLongArray target = filter.beginRebuild();
+        for (long id = 1; id <= 200; id++) {
+            filter.put(id);
+            for (long offset : filter.offsets(id)) {
+                setbit(expected, offset);
+            }
+        }
+        assertArrayEquals(expected, filter.toBytes(target));
+    }
+
+    @Test
+    void singleBitsUseRedisByteOrder() {
+        RedisBloomFilter filter = new RedisBloomFilter(1000, 0.01);
+        byte[] bytes = new byte[(int) (filter.bitSize() / 8)];
+        // offset 0 是第0个字节的最高位，offset 7 是最低位，offset 9 是第1个字节从高位数起的第2位
+        setbit(bytes, 0);
+        setbit(bytes, 7);
+        setbit(bytes, 9);
+        setbit(bytes, filter.bitSize() - 1);
+        assertEquals((byte) 0x81, bytes[0]);
+        assertEquals((byte) 0x40, bytes[1]);
+        assertEquals((byte) 0x01, bytes[bytes.length - 1]);
+
+        // 加载后再合并同一个bitmap，没有缺失的位
+        assertTrue(filter.load(bytes));
+        assertEquals(0, filter.merge(bytes));
+    }
+
+    @Test
+    void loadFromRedisBitmap() {
+        RedisBloomFilter filter = new RedisBloomFilter(1000, 0.01);
+        byte[] bitmap = new byte[(int) (filter.bitSize() / 8)];
+        for (long id = 1; id <= 300; id++) {
+            for (long offset : filter.offsets(id)) {
+                setbit(bitmap, offset);
+            }
+        }
+        assertTrue(filter.load(bitmap));
+        for (long id = 1; id <= 300; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        int falsePositives = 0;
+        for (long id = 1_000_000; id < 1_010_000; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300, "误判过多: " + falsePositives);
+    }
+
+    @Test
+    void mergeAddsOnlyMissingBits() {
+        RedisBloomFilter filter = new RedisBloomFilter(1000, 0.01);
+        filter.put(1);
+        byte[] bitmap = new byte[(int) (filter.bitSize() / 8)];
+        for (long offset : filter.offsets(1)) {
+            setbit(bitmap, offset);
+        }
+        // 其他节点新增的id只写入了Redis，本地没有收到通知
+        long[] offsets = filter.offsets(2);
+        long missing = 0;
+        for (long offset : offsets) {
+            if ((bitmap[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                missing++;
+            }
+            setbit(bitmap, offset);
+        }
+        assertFalse(filter.mightContain(2));
+        assertEquals(missing, filter.merge(bitmap));
+        assertTrue(filter.mightContain(1));
+        assertTrue(filter.mightContain(2));
+        assertEquals(0, filter.merge(bitmap));
+    }
+
+    @Test
+    void rejectsBitmapOfDifferentSize() {
+        RedisBloomFilter filter = new RedisBloomFilter(1000, 0.01);
+        byte[] shorter = new byte[(int) (filter.bitSize() / 8) - 1];
+        assertFalse(filter.load(shorter));
+        assertFalse(filter.load(null));
+        assertEquals(-1, filter.merge(shorter));
+    }
+
+    @Test
+    void offsetsStayInRange() {
+        RedisBloomFilter filter = new RedisBloomFilter(1000, 0.01);
+        assertEquals(0, filter.bitSize() % 64);
+        for (long id = -1000; id <= 1000; id++) {
+            for (long offset : filter.offsets(id)) {
+                assertTrue(offset >= 0 && offset < filter.bitSize());
+            }
+        }
+    }
+
+    /**
+     * 与Redis SETBIT相同的位编号
+     */
+    private static void setbit(byte[] bytes, long offset) {
+        bytes[(int) (offset >>> 3)] |= (byte) (1 << (7 - (offset & 7)));
+    }
+}
@@ -0,0 +1,275 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 发件箱崩溃恢复：按文件格式直接构造崩溃时磁盘上的状态，重新打开后只回放未确认的完整记录
+ */
+class SeckillOrderOutboxTest {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 32;
+    private static final int CAPACITY = HEADER_SIZE + ENTRY_SIZE * 8;
+
+    @TempDir
+    Path dir;
+
+    private final List<SeckillOrderOutbox> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (SeckillOrderOutbox outbox : opened) {
+            outbox.destroy();
+        }
+    }
+
+    @Test
+    void replaysUnconfirmedOrdersAfterRestart() throws Exception {
+        File file = dir.resolve("outbox.log").toFile();
+        RecordingPublisher failing = new RecordingPublisher(false);
+        SeckillOrderOutbox outbox = open(file, failing);
+        assertTrue(outbox.append(order(1)));
+        assertTrue(outbox.append(order(2)));
+        assertTrue(outbox.append(order(3)));
+        failing.await(1);
+        outbox.destroy();
+        opened.remove(outbox);
+
+        RecordingPublisher publisher = new RecordingPublisher(true);
+        SeckillOrderOutbox reopened = open(file, publisher);
+        assertEquals(Arrays.asList(1L, 2L, 3L), publisher.await(3));
+        waitUntilEmpty(reopened);
+    }
+
+    @Test
+    void ignoresRecordWithoutLength() throws Exception {
+        // 写到一半崩溃：记录内容已写入，最后写的长度还没有写入
+        File file = dir.resolve("outbox.log").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(CAPACITY);
+            raf.seek(0);
+            raf.writeLong(HEADER_SIZE);
+            writeEntry(raf, HEADER_SIZE, 1);
+            writeEntry(raf, HEADER_SIZE + ENTRY_SIZE, 2);
+            raf.seek(HEADER_SIZE + 2 * ENTRY_SIZE + 4);
+            raf.writeLong(3);
+            raf.writeLong(103);
+            raf.writeLong(203);
+            raf.writeInt(1);
+        }
+
+        RecordingPublisher publisher = new RecordingPublisher(true);
+        SeckillOrderOutbox outbox = open(file, publisher);
+        assertEquals(Arrays.asList(1L, 2L), publisher.await(2));
+        waitUntilEmpty(outbox);
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(2, publisher.published.size());
+
+        // 之后的追加覆盖写了一半的记录
+        assertTrue(outbox.append(order(4)));
+        assertEquals(Arrays.asList(1L, 2L, 4L), publisher.await(3));
+    }
+
+    @Test
+    void replaysOriginalRecordsWhenCompactionCrashedBeforeHeaderUpdate() throws Exception {
+        // 已复制到文件头之后并写入结束标记，但文件头仍指向原位置
+        File file = dir.resolve("outbox.log").toFile();
+        int committed = HEADER_SIZE + 5 * ENTRY_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(CAPACITY);
+            raf.seek(0);
+            raf.writeLong(committed);
+            writeEntry(raf, HEADER_SIZE, 6);
+            writeEntry(raf, HEADER_SIZE + ENTRY_SIZE, 7);
+            raf.seek(HEADER_SIZE + 2 * ENTRY_SIZE);
+            raf.writeInt(0);
+            writeEntry(raf, committed, 6);
+            writeEntry(raf, committed + ENTRY_SIZE, 7);
+        }
+
+        RecordingPublisher publisher = new RecordingPublisher(true);
+        SeckillOrderOutbox outbox = open(file, publisher);
+        assertEquals(Arrays.asList(6L, 7L), publisher.await(2));
+        waitUntilEmpty(outbox);
+    }
+
+    @Test
+    void replaysCopiedRecordsWhenCompactionCrashedAfterHeaderUpdate() throws Exception {
+        // 文件头已指向副本，原位置的记录还在，不能在结束标记之后继续回放
+        File file = dir.resolve("outbox.log").toFile();
+        int original = HEADER_SIZE + 5 * ENTRY_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(CAPACITY);
+            raf.seek(0);
+            raf.writeLong(HEADER_SIZE);
+            writeEntry(raf, HEADER_SIZE, 6);
+            writeEntry(raf, HEADER_SIZE + ENTRY_SIZE, 7);
+            raf.seek(HEADER_SIZE + 2 * ENTRY_SIZE);
+            raf.writeInt(0);
+            writeEntry(raf, original, 6);
+            writeEntry(raf, original + ENTRY_SIZE, 7);
+        }
+
+        RecordingPublisher publisher = new RecordingPublisher(true);
+        SeckillOrderOutbox outbox = open(file, publisher);
+        assertEquals(Arrays.asList(6L, 7L), publisher.await(2));
+        waitUntilEmpty(outbox);
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(2, publisher.published.size());
+    }
+
+    @Test
+    void compactsPendingRecordsToFreeSpace() throws Exception {
+        File file = dir.resolve("outbox.log").toFile();
+        // 写满8条，只确认前6条：剩下2条未确认，复制到文件头之后不会覆盖它们
+        RecordingPublisher publisher = new RecordingPublisher(6);
+        publisher.hold();
+        SeckillOrderOutbox outbox = open(file, publisher);
+        for (long id = 1; id <= 8; id++) {
+            assertTrue(outbox.append(order(id)));
+        }
+        publisher.release();
+        waitUntilPending(outbox, 2);
+
+        assertTrue(outbox.append(order(9)));
+        assertEquals(3, outbox.pendingCount());
+        publisher.confirmAll();
+        waitUntilEmpty(outbox);
+        List<Long> published = publisher.await(0);
+        assertEquals(Arrays.asList(7L, 8L, 9L), published.subList(published.size() - 3, published.size()));
+    }
+
+    @Test
+    void refusesToCompactOverlappingRecords() throws Exception {
+        File file = dir.resolve("outbox.log").toFile();
+        // 只确认前2条，剩下6条未确认，复制时会覆盖尚未复制的记录，不压缩
+        RecordingPublisher publisher = new RecordingPublisher(2);
+        publisher.hold();
+        SeckillOrderOutbox outbox = open(file, publisher);
+        for (long id = 1; id <= 8; id++) {
+            assertTrue(outbox.append(order(id)));
+        }
+        publisher.release();
+        waitUntilPending(outbox, 6);
+
+        assertFalse(outbox.append(order(9)));
+        assertEquals(6, outbox.pendingCount());
+    }
+
+    private SeckillOrderOutbox open(File file, SeckillOrderPublisher publisher) throws IOException {
+        SeckillOrderOutbox outbox = new SeckillOrderOutbox(publisher);
+        ReflectionTestUtils.setField(outbox, "enabled", true);
+        ReflectionTestUtils.setField(outbox, "file", file.getAbsolutePath());
+        ReflectionTestUtils.setField(outbox, "capacity", CAPACITY);
+        ReflectionTestUtils.setField(outbox, "relayBatchSize", 200);
+        ReflectionTestUtils.setField(outbox, "confirmTimeout", 1000L);
+        outbox.init();
+        opened.add(outbox);
+        return outbox;
+    }
+
+    private static void waitUntilEmpty(SeckillOrderOutbox outbox) throws InterruptedException {
+        waitUntilPending(outbox, 0);
+    }
+
+    private static void waitUntilPending(SeckillOrderOutbox outbox, int pending) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outbox.pendingCount() != pending) {
+            assertTrue(System.currentTimeMillis() < deadline, "outbox没有在超时前剩下" + pending + "条");
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static void writeEntry(RandomAccessFile raf, int position, long id) throws IOException {
+        raf.seek(position);
+        raf.writeInt(28);
+        raf.writeLong(id);
+        raf.writeLong(100 + id);
+        raf.writeLong(200 + id);
+        raf.writeInt(1);
+    }
+
+    private static VoucherOrder order(long id) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(id);
+        voucherOrder.setUserId(100 + id);
+        voucherOrder.setVoucherId(200 + id);
+        voucherOrder.setQuantity(1);
+        return voucherOrder;
+    }
+
+    /**
+     * 记录发布的订单id，前confirms次发布确认成功，之后都失败
+     */
+    private static class RecordingPublisher extends SeckillOrderPublisher {
+        private final List<Long> published = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger confirms;
+
+        private RecordingPublisher(boolean confirm) {
+            this(confirm ? Integer.MAX_VALUE : 0);
+        }
+
+        private RecordingPublisher(int confirms) {
+            super(null, null);
+            this.confirms = new AtomicInteger(confirms);
+        }
+
+        /**
+         * 写满之前中继线程不发布，否则全部确认后日志被截断，写不满
+         */
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+
+        private void hold() {
+            gate = new CountDownLatch(1);
+        }
+
+        private void release() {
+            gate.countDown();
+        }
+
+        private void confirmAll() {
+            confirms.set(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> publish(VoucherOrder voucherOrder) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            published.add(voucherOrder.getId());
+            return CompletableFuture.completedFuture(confirms.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0);
+        }
+
+        private List<Long> await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (published.size() < count) {
+                assertTrue(System.currentTimeMillis() < deadline, "没有在超时前发布" + count + "条消息");
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            synchronized (published) {
+                return new ArrayList<>(count == 0 ? published : published.subList(0, count));
+            }
+        }
+    }
+}
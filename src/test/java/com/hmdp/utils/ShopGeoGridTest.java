@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 网格索引的结果与暴力计算所有商铺的距离后排序的结果一致
+ */
+class ShopGeoGridTest {
+
+    private static final int COUNT = 3000;
+    private static final double CELL_DEGREES = 0.01;
+
+    private long[] ids;
+    private double[] xs;
+    private double[] ys;
+    private ShopGeoGrid grid;
+
+    @BeforeEach
+    void setUp() {
+        // 商铺分布在约20km×20km的范围内，每10个商铺有一个与前一个坐标相同，覆盖距离相等按id排序的情况
+        Random random = new Random(7);
+        ids = new long[COUNT];
+        xs = new double[COUNT];
+        ys = new double[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            ids[i] = COUNT - i;
+            if (i > 0 && i % 10 == 0) {
+                xs[i] = xs[i - 1];
+                ys[i] = ys[i - 1];
+            } else {
+                xs[i] = 120.0 + random.nextDouble() * 0.2;
+                ys[i] = 30.0 + random.nextDouble() * 0.2;
+            }
+        }
+        grid = new ShopGeoGrid(ids, xs, ys, COUNT, CELL_DEGREES);
+    }
+
+    @Test
+    void nearbyMatchesBruteForce() {
+        Random random = new Random(11);
+        for (int query = 0; query < 50; query++) {
+            double x = 119.95 + random.nextDouble() * 0.3;
+            double y = 29.95 + random.nextDouble() * 0.3;
+            double radius = query % 5 == 0 ? 0 : 500 + random.nextDouble() * 5000;
+            int limit = 1 + random.nextInt(60);
+            assertHits(bruteForce(x, y, radius, null, 0, limit), grid.nearby(x, y, radius, null, 0, limit));
+        }
+    }
+
+    @Test
+    void cursorPagesThroughAllShopsInOrder() {
+        double x = 120.1;
+        double y = 30.1;
+        double radius = 3000;
+        List<ShopGeoGrid.Hit> expected = bruteForce(x, y, radius, null, 0, COUNT);
+        assertFalse(expected.isEmpty());
+
+        List<ShopGeoGrid.Hit> paged = new ArrayList<>();
+        Double lastDistance = null;
+        long lastId = 0;
+        while (true) {
+            List<ShopGeoGrid.Hit> page = grid.nearby(x, y, radius, lastDistance, lastId, 7);
+            if (page.isEmpty()) {
+                break;
+            }
+            paged.addAll(page);
+            ShopGeoGrid.Hit last = page.get(page.size() - 1);
+            lastDistance = last.getDistance();
+            lastId = last.getId();
+        }
+        assertHits(expected, paged);
+    }
+
+    @Test
+    void cursorStartsAfterTiedShop() {
+        // 坐标相同的两个商铺距离相等，游标停在较小的id上时下一页从较大的id开始
+        double x = xs[10];
+        double y = ys[10];
+        List<ShopGeoGrid.Hit> first = grid.nearby(x, y, 0, null, 0, 2);
+        assertEquals(0.0, first.get(0).getDistance());
+        assertEquals(0.0, first.get(1).getDistance());
+        assertEquals(Math.min(ids[9], ids[10]), first.get(0).getId());
+
+        List<ShopGeoGrid.Hit> next = grid.nearby(x, y, 0, 0.0, first.get(0).getId(), 1);
+        assertEquals(first.get(1).getId(), next.get(0).getId());
+    }
+
+    @Test
+    void mergeKeepsNearestAcrossLists() {
+        List<ShopGeoGrid.Hit> a = Arrays.asList(new ShopGeoGrid.Hit(1, 10), new ShopGeoGrid.Hit(3, 30), new ShopGeoGrid.Hit(5, 50));
+        List<ShopGeoGrid.Hit> b = Arrays.asList(new ShopGeoGrid.Hit(2, 20), new ShopGeoGrid.Hit(4, 30));
+        List<ShopGeoGrid.Hit> merged = ShopGeoGrid.merge(Arrays.asList(a, b, Collections.emptyList()), 4);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), ids(merged));
+    }
+
+    @Test
+    void emptyGridReturnsNothing() {
+        ShopGeoGrid empty = new ShopGeoGrid(new long[0], new double[0], new double[0], 0, CELL_DEGREES);
+        assertTrue(empty.nearby(120, 30, 5000, null, 0, 10).isEmpty());
+    }
+
+    private List<ShopGeoGrid.Hit> bruteForce(double x, double y, double radius, Double afterDistance, long afterId, int limit) {
+        List<ShopGeoGrid.Hit> hits = new ArrayList<>();
+        for (int i = 0; i < COUNT; i++) {
+            double distance = ShopGeoGrid.distance(x, y, xs[i], ys[i]);
+            if (radius > 0 && distance > radius) {
+                continue;
+            }
+            if (afterDistance != null && (distance < afterDistance || (distance == afterDistance && ids[i] <= afterId))) {
+                continue;
+            }
+            hits.add(new ShopGeoGrid.Hit(ids[i], distance));
+        }
+        hits.sort(Comparator.comparingDouble(ShopGeoGrid.Hit::getDistance).thenComparingLong(ShopGeoGrid.Hit::getId));
+        return hits.size() <= limit ? hits : hits.subList(0, limit);
+    }
+
+    private static void assertHits(List<ShopGeoGrid.Hit> expected, List<ShopGeoGrid.Hit> actual) {
+        assertEquals(ids(expected), ids(actual));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getDistance(), actual.get(i).getDistance(), 1e-9);
+        }
+    }
+
+    private static List<Long> ids(List<ShopGeoGrid.Hit> hits) {
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (ShopGeoGrid.Hit hit : hits) {
+            ids.add(hit.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 滚动查询的游标和快照编码
+ */
+class ShopGeoSessionTest {
+
+    private static final int MAX_SIZE = 400;
+
+    private ShopGeoSession session;
+
+    @BeforeEach
+    void setUp() {
+        session = new ShopGeoSession();
+        ReflectionTestUtils.setField(session, "maxSize", MAX_SIZE);
+    }
+
+    @Test
+    void cursorRoundTrip() {
+        String token = "4f1c2b7d9a0e4c3f8b6a5d2e1f0c9b8a";
+        for (int offset : new int[]{0, 8, MAX_SIZE - 1}) {
+            ShopGeoSession.Position position = session.parseCursor(session.cursor(token, offset));
+            assertNotNull(position);
+            assertEquals(token, position.getToken());
+            assertEquals(offset, position.getOffset());
+        }
+    }
+
+    @Test
+    void rejectsOffsetOutsideSnapshot() {
+        assertNull(session.parseCursor("token:-1"));
+        assertNull(session.parseCursor("token:" + MAX_SIZE));
+        assertNull(session.parseCursor("token:" + Integer.MAX_VALUE));
+        assertNull(session.parseCursor("token:99999999999"));
+    }
+
+    @Test
+    void rejectsMalformedCursor() {
+        assertNull(session.parseCursor("token"));
+        assertNull(session.parseCursor(":8"));
+        assertNull(session.parseCursor("token:"));
+        assertNull(session.parseCursor("token:abc"));
+    }
+
+    @Test
+    void snapshotEncodingRoundTrip() {
+        List<ShopGeoGrid.Hit> hits = Arrays.asList(new ShopGeoGrid.Hit(3, 12.5), new ShopGeoGrid.Hit(1, 40.25),
+                new ShopGeoGrid.Hit(Long.MAX_VALUE, 4999.9999));
+        List<ShopGeoGrid.Hit> decoded = ShopGeoSession.decode(ShopGeoSession.encode(hits, MAX_SIZE));
+        assertEquals(hits.size(), decoded.size());
+        for (int i = 0; i < hits.size(); i++) {
+            assertEquals(hits.get(i).getId(), decoded.get(i).getId());
+            assertEquals(hits.get(i).getDistance(), decoded.get(i).getDistance());
+        }
+    }
+
+    @Test
+    void snapshotKeepsAtMostMaxSize() {
+        List<ShopGeoGrid.Hit> hits = new ArrayList<>();
+        for (int i = 0; i < MAX_SIZE + 10; i++) {
+            hits.add(new ShopGeoGrid.Hit(i, i));
+        }
+        assertEquals(MAX_SIZE, ShopGeoSession.decode(ShopGeoSession.encode(hits, MAX_SIZE)).size());
+    }
+
+    @Test
+    void decodeIgnoresPartialEntry() {
+        byte[] bytes = ShopGeoSession.encode(Arrays.asList(new ShopGeoGrid.Hit(1, 1), new ShopGeoGrid.Hit(2, 2)), MAX_SIZE);
+        assertEquals(1, ShopGeoSession.decode(Arrays.copyOf(bytes, bytes.length - 1)).size());
+        assertTrue(ShopGeoSession.decode(new byte[0]).isEmpty());
+        assertTrue(ShopGeoSession.decode(null).isEmpty());
+    }
+}